@@ -2,12 +2,18 @@ package com.ymcmp.okm;
 
 import java.util.Map;
 import java.util.List;
-import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
 
-import java.util.logging.Level;
+import java.util.function.Function;
 
+import java.io.Writer;
+import java.io.PrintStream;
 import java.io.IOException;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
 import java.io.ObjectOutputStream;
 
 import java.nio.file.Path;
@@ -25,8 +31,10 @@ import com.ymcmp.okm.tac.Register;
 import com.ymcmp.okm.tac.Statement;
 
 import com.ymcmp.okm.runtime.Machine;
+import com.ymcmp.okm.runtime.Snapshot;
 
 import com.ymcmp.okm.converter.Converter;
+import com.ymcmp.okm.converter.CConverter;
 import com.ymcmp.okm.converter.IRFormatter;
 import com.ymcmp.okm.converter.AMD64Converter;
 
@@ -40,21 +48,51 @@ public class App {
         @Parameter(names={"--import-path", "-i"}, description="Add directory to import search path", converter=PathConverter.class)
         private List<Path> importPath = new ArrayList<>();
 
-        @Parameter(names={"--debug"}, description="Run compiler in debug mode")
+        @Parameter(names={"--debug"}, description="Run compiler in debug mode (traces everything)")
         private boolean debug = false;
 
+        @Parameter(names={"--trace"}, description="Comma separated categories to trace: parse, lower, types, passes")
+        private List<String> trace = new ArrayList<>();
+
+        @Parameter(names={"--trace-module"}, description="Only trace the front end while it processes this file", converter=PathConverter.class)
+        private Path traceModule = null;
+
         @Parameter(names={"--exec-ir"}, description="Executes intermediate representation after compilation")
         private boolean execIR = false;
 
-        @Parameter(names={"--emit-ir"}, description="Outputs IR, cannot use with --emit-amd64")
+        @Parameter(names={"--emit-ir"}, description="Outputs IR, cannot use with --emit-amd64 or --emit-c")
         private boolean emitIR = false;
 
-        @Parameter(names={"--emit-amd64"}, description="Converts IR to x86-64 Intel syntax assembly (use with NASM), cannot use with --emit-ir")
+        @Parameter(names={"--emit-amd64"}, description="Converts IR to x86-64 Intel syntax assembly (use with NASM), cannot use with --emit-ir or --emit-c")
         private boolean emitAMD64 = false;
 
+        @Parameter(names={"--emit-c"}, description="Converts IR to C99 (compile it with the native functions it uses), cannot use with --emit-ir or --emit-amd64")
+        private boolean emitC = false;
+
         @Parameter(names={"--output", "-o"}, description="Where to write the output to", converter=PathConverter.class)
         private Path outputPath = null;
 
+        @Parameter(names={"--pipeline"}, description="Optimizes and emits each function while the rest are still being compiled")
+        private boolean pipeline = false;
+
+        @Parameter(names={"--spill-dir"}, description="Keeps lowered functions in this directory until they are optimized, cannot use with --pipeline", converter=PathConverter.class)
+        private Path spillDir = null;
+
+        @Parameter(names={"--lazy"}, description="Only lowers the functions that are reachable from the module initializers or the public functions of the input files, cannot use with --pipeline or --spill-dir")
+        private boolean lazy = false;
+
+        @Parameter(names={"--snapshot"}, description="Runs the initializers of imported modules and saves the result, use --restore to run it", converter=PathConverter.class)
+        private Path snapshotPath = null;
+
+        @Parameter(names={"--restore"}, description="Runs a program saved by --snapshot, skipping the initializers of imported modules", converter=PathConverter.class)
+        private Path restorePath = null;
+
+        @Parameter(names={"--daemon"}, description="Serves compile requests on the given local port")
+        private Integer daemonPort = null;
+
+        @Parameter(names={"--connect"}, description="Sends the other arguments to the daemon on the given local port")
+        private Integer connectPort = null;
+
         @Parameter(names={"--help", "-h"}, description="Displays help")
         private boolean help = false;
     }
@@ -68,17 +106,222 @@ public class App {
 
     private static final List<Pass> OPT_PASSES = new ArrayList<>();
 
+    private static final List<ProgramPass> PROGRAM_PASSES = new ArrayList<>();
+
     static {
+        PROGRAM_PASSES.add(new DevirtualizePass());
+
         OPT_PASSES.add(new ReduceMovePass());
         OPT_PASSES.add(new TailCallPass());
         OPT_PASSES.add(new SquashCmpPass());
         OPT_PASSES.add(new ConstantFoldPass());
+        OPT_PASSES.add(new ConditionalConstantPass());
+        OPT_PASSES.add(new GlobalValueNumberPass());
         OPT_PASSES.add(new EliminateDeadCodePass());
         OPT_PASSES.add(new NormalizeRefGetPass());
+        OPT_PASSES.add(new ScalarReplacePass());
         OPT_PASSES.add(new TempParamPass());
         OPT_PASSES.add(new ComSwapPass());
     }
 
+    private static final int PIPELINE_DEPTH = 16;
+
+    static void optimize(final String name, final FuncBlock func) {
+        final EliminateNopPass eliminateNop = new EliminateNopPass();
+        int sizeBeforePass = 0;
+        do {
+            sizeBeforePass = func.code.size();
+            for (final Pass pass : OPT_PASSES) {
+                final int sizeBefore = func.code.size();
+                pass.process(name, func.code);
+                pass.reset();
+                eliminateNop.process(name, func.code);
+                eliminateNop.reset();
+                if (Trace.isTraced(Trace.Category.PASSES)) {
+                    Trace.event(Trace.Category.PASSES, pass.getClass().getSimpleName() + " on " + name
+                            + ": " + sizeBefore + " -> " + func.code.size() + " statements");
+                }
+            }
+        } while (sizeBeforePass != func.code.size());
+    }
+
+    private static Writer openOutput(final Path outputPath, final PrintStream stdout) throws IOException {
+        return outputPath == null
+                ? new BufferedWriter(new OutputStreamWriter(stdout))
+                : Files.newBufferedWriter(outputPath);
+    }
+
+    private static void closeOutput(final Writer out, final Path outputPath) throws IOException {
+        if (outputPath == null) {
+            // Do not close stdout
+            out.flush();
+        } else {
+            out.close();
+        }
+    }
+
+    private static void emit(final Converter conv, final Map<String, FuncBlock> result, final Path outputPath, final PrintStream stdout) throws IOException {
+        // Output is written function by function instead of being built
+        // up as one string
+        final Writer out = openOutput(outputPath, stdout);
+        try {
+            for (final Map.Entry<String, FuncBlock> entry : result.entrySet()) {
+                conv.convert(entry.getKey(), entry.getValue(), out);
+            }
+            conv.finish(out);
+            out.write(System.lineSeparator());
+        } finally {
+            closeOutput(out, outputPath);
+        }
+    }
+
+    private static Map<String, FuncBlock> compileAndOptimize(final Args argData, final LocalVisitor visitor) {
+        // Program passes may drop functions, so they need a modifiable map
+        final Map<String, FuncBlock> result = new LinkedHashMap<>(visitor.compile(argData.inputPaths));
+
+        // This line makes sure temporaries generated by optimization passes
+        // will never clash with the ones generated by the AST walker (since
+        // the AST walker will reset the temporary counter)
+        Register.setAdditionalTemporaryPrefix("P");
+        for (final ProgramPass pass : PROGRAM_PASSES) {
+            pass.process(result);
+            pass.reset();
+        }
+        // After devirtualizing, vtables that went away no longer keep
+        // their methods alive. Public functions of the input files may be
+        // called from outside, the roots differ for each compilation
+        new EliminateDeadFunctionPass(visitor.getEntryExports()).process(result);
+
+        result.forEach(App::optimize);
+        Register.resetCounter();
+        Register.setAdditionalTemporaryPrefix("");
+        return result;
+    }
+
+    private static LocalVisitor makeVisitor(final Args argData, final ParseCache cache, final PrintStream stderr) {
+        // Syntax errors go to the stream of the invocation (which is not
+        // System.err when running inside the daemon)
+        final LocalVisitor visitor = new LocalVisitor(argData.importPath);
+        visitor.setParseCache(cache);
+        visitor.setErrorListener(new StreamErrorListener(stderr));
+        return visitor;
+    }
+
+    private static Map<String, FuncBlock> runPipeline(final Args argData, final ParseCache cache, final Converter conv, final boolean collect, final PrintStream stdout, final PrintStream stderr) throws IOException {
+        // Program passes need every function at once, they are skipped
+        final Map<String, FuncBlock> result = collect ? new LinkedHashMap<>() : null;
+        final Writer out = conv == null ? null : openOutput(argData.outputPath, stdout);
+        try {
+            final LocalVisitor visitor = makeVisitor(argData, cache, stderr);
+            new Pipeline(PIPELINE_DEPTH, conv, out, result)
+                    .run(visitor, argData.inputPaths);
+            if (out != null) {
+                out.write(System.lineSeparator());
+            }
+        } finally {
+            if (out != null) {
+                closeOutput(out, argData.outputPath);
+            }
+        }
+        return result;
+    }
+
+    private static Function<String, FuncBlock> makeLinker(final LocalVisitor visitor) {
+        // Deferred functions are lowered and optimized on first request
+        return name -> {
+            final FuncBlock func = visitor.lower(name);
+            if (func != null) {
+                optimize(name, func);
+            }
+            return func;
+        };
+    }
+
+    private static Map<String, FuncBlock> link(final Map<String, FuncBlock> roots, final List<String> exports, final Function<String, FuncBlock> linker) {
+        // Starting from @init and the public functions of the input files,
+        // pull in every function that the already linked ones mention.
+        // Nothing else is ever lowered
+        final Map<String, FuncBlock> linked = new LinkedHashMap<>();
+        final ArrayDeque<String> worklist = new ArrayDeque<>(roots.keySet());
+        worklist.addAll(exports);
+        while (!worklist.isEmpty()) {
+            final String name = worklist.poll();
+            if (linked.containsKey(name)) continue;
+
+            FuncBlock func = roots.get(name);
+            if (func != null) {
+                optimize(name, func);
+            } else if ((func = linker.apply(name)) == null) {
+                // Not a function (or a native one)
+                continue;
+            }
+            linked.put(name, func);
+
+            for (final Statement stmt : func.code) {
+                if (stmt.lhs instanceof Register) worklist.add(stmt.lhs.toString());
+                if (stmt.rhs instanceof Register) worklist.add(stmt.rhs.toString());
+                if (stmt.dst instanceof Register) worklist.add(stmt.dst.toString());
+            }
+        }
+        return linked;
+    }
+
+    private static void printUsage(final JCommander instance, final PrintStream stdout) {
+        final StringBuilder sb = new StringBuilder();
+        instance.usage(sb);
+        stdout.print(sb);
+        stdout.flush();
+    }
+
+    private static Map<String, FuncBlock> runSpilled(final Args argData, final ParseCache cache, final Converter conv, final boolean collect, final PrintStream stdout, final PrintStream stderr) throws IOException {
+        // Like the pipeline, program passes need every function at once
+        // and are skipped. Only one function is in memory at any time
+        // (unless they are all needed afterwards)
+        final Map<String, FuncBlock> result = collect ? new LinkedHashMap<>() : null;
+        final SpillStore store = new SpillStore(argData.spillDir);
+        try {
+            final LocalVisitor visitor = makeVisitor(argData, cache, stderr);
+            visitor.setFunctionSink((name, func) -> {
+                try {
+                    store.put(name, func);
+                } catch (IOException ex) {
+                    throw new RuntimeException("Cannot spill function " + name + ", " + ex.getMessage());
+                }
+            });
+            visitor.compile(argData.inputPaths);
+
+            final Writer out = conv == null ? null : openOutput(argData.outputPath, stdout);
+            try {
+                // Same reason as compileAndOptimize
+                Register.setAdditionalTemporaryPrefix("P");
+                for (int i = 0; i < store.size(); ++i) {
+                    final String name = store.getName(i);
+                    final FuncBlock func = store.take(i);
+                    optimize(name, func);
+                    if (conv != null) {
+                        conv.convert(name, func, out);
+                    }
+                    if (result != null) {
+                        result.put(name, func);
+                    }
+                }
+                if (conv != null) {
+                    conv.finish(out);
+                    out.write(System.lineSeparator());
+                }
+            } finally {
+                Register.resetCounter();
+                Register.setAdditionalTemporaryPrefix("");
+                if (out != null) {
+                    closeOutput(out, argData.outputPath);
+                }
+            }
+        } finally {
+            store.close();
+        }
+        return result;
+    }
+
     public static void main(String[] args) {
         final Args argData = new Args();
         final JCommander instance = JCommander.newBuilder()
@@ -87,81 +330,222 @@ public class App {
         try {
             instance.parse(args);
         } catch (ParameterException ex) {
-            System.err.println(ex.getMessage());
-            instance.usage();
+            // Report it through run, like any other invocation
+        }
+
+        if (argData.connectPort != null) {
+            final int status;
+            try {
+                status = Daemon.connect(argData.connectPort, Daemon.stripConnect(args));
+            } catch (IOException ex) {
+                throw new RuntimeException("Cannot reach daemon on port " + argData.connectPort + ", " + ex.getMessage());
+            }
+            System.exit(status);
+        }
+
+        if (argData.daemonPort != null) {
+            try {
+                Daemon.serve(argData.daemonPort);
+            } catch (IOException ex) {
+                throw new RuntimeException("Cannot start daemon on port " + argData.daemonPort + ", " + ex.getMessage());
+            }
             return;
         }
 
+        run(args, Paths.get(""), null, System.out, System.err);
+    }
+
+    // Paths are resolved against workDir, cache can be null. Returns the
+    // exit status of the invocation
+    static int run(final String[] args, final Path workDir, final ParseCache cache, final PrintStream stdout, final PrintStream stderr) {
+        final Args argData = new Args();
+        final JCommander instance = JCommander.newBuilder()
+                .addObject(argData)
+                .build();
+        try {
+            instance.parse(args);
+        } catch (ParameterException ex) {
+            stderr.println(ex.getMessage());
+            printUsage(instance, stdout);
+            return 1;
+        }
+
         if (argData.help) {
-            instance.usage();
-            return;
+            printUsage(instance, stdout);
+            return 0;
         }
 
-        if (argData.inputPaths.isEmpty()) {
-            System.err.println("Missing input file");
-            return;
+        if (argData.daemonPort != null || argData.connectPort != null) {
+            stderr.println("--daemon and --connect cannot be used here");
+            return 1;
         }
 
-        LocalVisitor.LOGGER.setLevel(argData.debug ? Level.INFO : Level.OFF);
+        if (argData.restorePath != null) {
+            if (!argData.inputPaths.isEmpty()) {
+                stderr.println("--restore does not take input files");
+                return 1;
+            }
 
-        final Map<String, FuncBlock> result = new LocalVisitor(argData.importPath)
-                .compile(argData.inputPaths);
+            final Snapshot image;
+            try {
+                image = Snapshot.read(workDir.resolve(argData.restorePath));
+            } catch (IOException ex) {
+                throw new RuntimeException("Cannot restore snapshot " + argData.restorePath + ", " + ex.getMessage());
+            }
+            new Machine(stdout).resume(image);
+            stdout.flush();
+            return 0;
+        }
 
-        // This line makes sure temporaries generated by optimization passes
-        // will never clash with the ones generated by the AST walker (since
-        // the AST walker will reset the temporary counter)
-        Register.setAdditionalTemporaryPrefix("P");
-        final EliminateNopPass eliminateNop = new EliminateNopPass();
-        result.forEach((name, func) -> {
-            int sizeBeforePass = 0;
-            do {
-                sizeBeforePass = func.code.size();
-                for (final Pass pass : OPT_PASSES) {
-                    pass.process(name, func.code);
-                    pass.reset();
-                    eliminateNop.process(name, func.code);
-                    eliminateNop.reset();
-                }
-            } while (sizeBeforePass != func.code.size());
-        });
-        Register.resetCounter();
+        if (argData.inputPaths.isEmpty()) {
+            stderr.println("Missing input file");
+            return 1;
+        }
 
         if (argData.emitIR && argData.emitAMD64) {
             throw new RuntimeException("--emit-ir cannot be used with --emit-amd64");
         }
 
-        if (argData.emitIR) {
-            if (argData.outputPath == null) {
-                final IRFormatter conv = new IRFormatter();
-                result.forEach(conv::convert);
-                System.out.println(conv.getResult());
+        if (argData.emitC && (argData.emitIR || argData.emitAMD64)) {
+            throw new RuntimeException("--emit-c cannot be used with --emit-ir or --emit-amd64");
+        }
+
+        if (argData.pipeline && argData.spillDir != null) {
+            throw new RuntimeException("--spill-dir cannot be used with --pipeline");
+        }
+
+        if (argData.lazy && (argData.pipeline || argData.spillDir != null)) {
+            throw new RuntimeException("--lazy cannot be used with --pipeline or --spill-dir");
+        }
+
+        if (argData.snapshotPath != null && (argData.pipeline || argData.spillDir != null)) {
+            throw new RuntimeException("--snapshot cannot be used with --pipeline or --spill-dir");
+        }
+
+        argData.inputPaths.replaceAll(workDir::resolve);
+        argData.importPath.replaceAll(workDir::resolve);
+        if (argData.spillDir != null) {
+            argData.spillDir = workDir.resolve(argData.spillDir);
+        }
+        if (argData.snapshotPath != null) {
+            argData.snapshotPath = workDir.resolve(argData.snapshotPath);
+        }
+        if (argData.traceModule != null) {
+            argData.traceModule = workDir.resolve(argData.traceModule);
+        }
+        if (argData.outputPath != null) {
+            argData.outputPath = workDir.resolve(argData.outputPath);
+        }
+
+        final EnumSet<Trace.Category> traced = EnumSet.noneOf(Trace.Category.class);
+        if (argData.debug) {
+            traced.addAll(EnumSet.allOf(Trace.Category.class));
+        }
+        for (final String category : argData.trace) {
+            try {
+                traced.add(Trace.Category.valueOf(category.trim().toUpperCase()));
+            } catch (IllegalArgumentException ex) {
+                stderr.println("Unknown trace category " + category);
+                return 1;
+            }
+        }
+        Trace.configure(traced, argData.traceModule == null
+                ? null : argData.traceModule.normalize().toAbsolutePath(), stderr);
+
+        // Textual outputs are converted function by function, serialized
+        // IR and the interpreter need the whole program
+        final boolean serializeIR = argData.emitIR && argData.outputPath != null;
+        final Converter conv = argData.emitAMD64 ? new AMD64Converter()
+                : argData.emitC ? new CConverter()
+                : argData.emitIR && !serializeIR ? new IRFormatter() : null;
+
+        final Map<String, FuncBlock> result;
+        // Only set if the interpreter loads functions as they are called
+        Function<String, FuncBlock> linker = null;
+        // Initializers of the input files, a snapshot is taken before them
+        List<String> entryInits = null;
+        try {
+            if (argData.lazy) {
+                final LocalVisitor visitor = makeVisitor(argData, cache, stderr);
+                visitor.setLazy(true);
+                final Map<String, FuncBlock> roots = new LinkedHashMap<>(visitor.compile(argData.inputPaths));
+                entryInits = visitor.getEntryInitializers();
+
+                // Same reason as compileAndOptimize
+                Register.setAdditionalTemporaryPrefix("P");
+                try {
+                    if (conv != null || serializeIR || argData.snapshotPath != null) {
+                        // Anything emitted must be linked up front
+                        result = link(roots, visitor.getEntryExports(), makeLinker(visitor));
+                        if (conv != null) {
+                            emit(conv, result, argData.outputPath, stdout);
+                        }
+                    } else {
+                        roots.forEach(App::optimize);
+                        result = roots;
+                        linker = makeLinker(visitor);
+                    }
+                } finally {
+                    Register.resetCounter();
+                    Register.setAdditionalTemporaryPrefix("");
+                }
+            } else if (argData.pipeline) {
+                result = runPipeline(argData, cache, conv, serializeIR || argData.execIR, stdout, stderr);
+            } else if (argData.spillDir != null) {
+                result = runSpilled(argData, cache, conv, serializeIR || argData.execIR, stdout, stderr);
             } else {
-                try (final ObjectOutputStream oos = new ObjectOutputStream(Files.newOutputStream(argData.outputPath))) {
-                    oos.writeObject(result);
-                } catch (IOException ex) {
-                    throw new RuntimeException("Cannot emit IR to " + argData.outputPath + ", " + ex.getMessage());
+                final LocalVisitor visitor = makeVisitor(argData, cache, stderr);
+                result = compileAndOptimize(argData, visitor);
+                entryInits = visitor.getEntryInitializers();
+                if (conv != null) {
+                    emit(conv, result, argData.outputPath, stdout);
                 }
             }
+        } catch (IOException ex) {
+            if (argData.emitAMD64) {
+                throw new RuntimeException("Cannot emit AMD64 (NASM) to " + argData.outputPath + ", " + ex.getMessage());
+            }
+            if (argData.emitC) {
+                throw new RuntimeException("Cannot emit C to " + argData.outputPath + ", " + ex.getMessage());
+            }
+            throw new RuntimeException("Cannot emit IR, " + ex.getMessage());
         }
 
-        if (argData.emitAMD64) {
-            final AMD64Converter conv = new AMD64Converter();
-            result.forEach(conv::convert);
-            final String asm = conv.getResult();
-            if (argData.outputPath == null) {
-                System.out.println(asm);
+        if (serializeIR) {
+            try (final ObjectOutputStream oos = new ObjectOutputStream(Files.newOutputStream(argData.outputPath))) {
+                oos.writeObject(result);
+            } catch (IOException ex) {
+                throw new RuntimeException("Cannot emit IR to " + argData.outputPath + ", " + ex.getMessage());
+            }
+        }
+
+        if (argData.snapshotPath != null) {
+            final Machine machine = new Machine(stdout);
+            final Snapshot image = machine.snapshot(result, entryInits);
+            try {
+                image.write(argData.snapshotPath);
+            } catch (IOException ex) {
+                throw new RuntimeException("Cannot write snapshot to " + argData.snapshotPath + ", " + ex.getMessage());
+            }
+            if (argData.execIR) {
+                machine.resume(image);
+            }
+            stdout.flush();
+        } else if (argData.execIR) {
+            final Machine machine = new Machine(stdout);
+            if (linker == null) {
+                machine.execute(result);
             } else {
+                Register.setAdditionalTemporaryPrefix("P");
                 try {
-                    Files.write(argData.outputPath, Arrays.asList(asm));
-                } catch (IOException ex) {
-                    throw new RuntimeException("Cannot emit AMD64 (NASM) to " + argData.outputPath + ", " + ex.getMessage());
+                    machine.execute(result, linker);
+                } finally {
+                    Register.resetCounter();
+                    Register.setAdditionalTemporaryPrefix("");
                 }
             }
+            stdout.flush();
         }
-
-        if (argData.execIR) {
-            final Machine machine = new Machine();
-            machine.execute(result);
-        }
+        return 0;
     }
 }
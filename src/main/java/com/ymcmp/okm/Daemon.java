@@ -0,0 +1,154 @@
+package com.ymcmp.okm;
+
+import java.io.PrintStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+
+import java.net.Socket;
+import java.net.ServerSocket;
+import java.net.InetAddress;
+
+import java.nio.file.Paths;
+
+import java.util.List;
+import java.util.ArrayList;
+
+// Keeps one compiler process (and its JIT-compiled code and parse trees)
+// alive for many invocations. Requests are served one at a time on a
+// loopback socket.
+//
+// Request:  int argc, argc * UTF argument, UTF working directory
+// Response: any number of [byte STDOUT|STDERR, int length, bytes],
+//           then [byte EXIT, int status]
+final class Daemon {
+
+    private static final int EXIT = 0;
+    private static final int STDOUT = 1;
+    private static final int STDERR = 2;
+
+    private static final class FrameOutputStream extends OutputStream {
+
+        private final DataOutputStream out;
+        private final int kind;
+
+        public FrameOutputStream(DataOutputStream out, int kind) {
+            this.out = out;
+            this.kind = kind;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            // Both streams share the socket
+            synchronized (out) {
+                out.writeByte(kind);
+                out.writeInt(len);
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (out) {
+                out.flush();
+            }
+        }
+    }
+
+    private Daemon() {
+    }
+
+    public static void serve(final int port) throws IOException {
+        final ParseCache cache = new ParseCache();
+        try (final ServerSocket server = new ServerSocket(port, 0, InetAddress.getLoopbackAddress())) {
+            System.err.println("Listening on " + server.getLocalSocketAddress());
+            while (true) {
+                try (final Socket client = server.accept()) {
+                    handle(client, cache);
+                } catch (IOException ex) {
+                    System.err.println("Dropped request, " + ex.getMessage());
+                }
+            }
+        }
+    }
+
+    private static void handle(final Socket client, final ParseCache cache) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+        final String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; ++i) {
+            args[i] = in.readUTF();
+        }
+        final String workDir = in.readUTF();
+
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+        final PrintStream stdout = new PrintStream(new BufferedOutputStream(new FrameOutputStream(out, STDOUT)));
+        final PrintStream stderr = new PrintStream(new BufferedOutputStream(new FrameOutputStream(out, STDERR)));
+
+        int status;
+        try {
+            status = App.run(args, Paths.get(workDir), cache, stdout, stderr);
+        } catch (RuntimeException | Error ex) {
+            // Same thing an uncaught exception would do to a fresh process
+            stdout.flush();
+            ex.printStackTrace(stderr);
+            status = 1;
+        }
+        stdout.flush();
+        stderr.flush();
+
+        out.writeByte(EXIT);
+        out.writeInt(status);
+        out.flush();
+    }
+
+    public static int connect(final int port, final String[] args) throws IOException {
+        try (final Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeInt(args.length);
+            for (final String arg : args) {
+                out.writeUTF(arg);
+            }
+            out.writeUTF(Paths.get("").toAbsolutePath().toString());
+            out.flush();
+
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            while (true) {
+                final int kind = in.readByte();
+                if (kind == EXIT) {
+                    final int status = in.readInt();
+                    System.out.flush();
+                    System.err.flush();
+                    return status;
+                }
+
+                final byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                (kind == STDERR ? System.err : System.out).write(data);
+            }
+        }
+    }
+
+    // Removes --connect and its port, everything else goes to the daemon
+    public static String[] stripConnect(final String[] args) {
+        final List<String> list = new ArrayList<>();
+        for (int i = 0; i < args.length; ++i) {
+            if ("--connect".equals(args[i])) {
+                ++i;
+            } else {
+                list.add(args[i]);
+            }
+        }
+        return list.toArray(new String[list.size()]);
+    }
+}
@@ -5,21 +5,24 @@ import java.io.IOException;
 import java.nio.file.Path;
 
 import java.util.Map;
+import java.util.Set;
 import java.util.List;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 
+import java.util.function.BiConsumer;
+
 import java.util.stream.Stream;
 import java.util.stream.Collectors;
 
-import java.util.logging.Logger;
-
-import org.antlr.v4.runtime.CharStreams;
-import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ANTLRErrorListener;
+import org.antlr.v4.runtime.ConsoleErrorListener;
 
 import org.antlr.v4.runtime.tree.ParseTree;
 
@@ -27,15 +30,12 @@ import com.ymcmp.okm.tac.*;
 import com.ymcmp.okm.type.*;
 import com.ymcmp.okm.except.*;
 
-import com.ymcmp.okm.grammar.OkmLexer;
 import com.ymcmp.okm.grammar.OkmParser;
 import com.ymcmp.okm.grammar.OkmParser.*;
 import com.ymcmp.okm.grammar.OkmBaseVisitor;
 
 public class LocalVisitor extends OkmBaseVisitor<Object> {
 
-    public static final Logger LOGGER = Logger.getLogger(LocalVisitor.class.getName());
-
     private static final Map<String, UnaryOperator> UNI_OP_MAPPING = new HashMap<>();
     private static final Map<String, BinaryOperator> BIN_OP_MAPPING = new HashMap<>();
 
@@ -50,7 +50,103 @@ public class LocalVisitor extends OkmBaseVisitor<Object> {
     private static final UnaryType TYPE_DOUBLE = UnaryType.getType("double");
     private static final UnaryType TYPE_UNIT = UnaryType.getType("unit");
 
-    private static final Fixnum INT_ZERO = new Fixnum(0, Integer.SIZE);
+    private static final Fixnum INT_ZERO = Fixnum.valueOf(0, Integer.SIZE);
+
+    // source numeric index -> destination numeric index -> conversion steps
+    private static final Operation[][][] CONVERSIONS = new Operation[UnaryType.NUMERIC_COUNT][UnaryType.NUMERIC_COUNT][];
+
+    static {
+        // Single instruction conversions:
+        addConversion(TYPE_BYTE, TYPE_INT, Operation.CONV_BYTE_INT);
+        addConversion(TYPE_SHORT, TYPE_INT, Operation.CONV_SHORT_INT);
+        addConversion(TYPE_LONG, TYPE_INT, Operation.CONV_LONG_INT);
+        addConversion(TYPE_INT, TYPE_BYTE, Operation.CONV_INT_BYTE);
+        addConversion(TYPE_INT, TYPE_SHORT, Operation.CONV_INT_SHORT);
+        addConversion(TYPE_INT, TYPE_LONG, Operation.CONV_INT_LONG);
+        addConversion(TYPE_INT, TYPE_FLOAT, Operation.CONV_INT_FLOAT);
+        addConversion(TYPE_LONG, TYPE_FLOAT, Operation.CONV_LONG_FLOAT);
+        addConversion(TYPE_INT, TYPE_DOUBLE, Operation.CONV_INT_DOUBLE);
+        addConversion(TYPE_LONG, TYPE_DOUBLE, Operation.CONV_LONG_DOUBLE);
+        addConversion(TYPE_FLOAT, TYPE_DOUBLE, Operation.CONV_FLOAT_DOUBLE);
+
+        // Multi-instruction conversions:
+        addConversion(TYPE_BYTE, TYPE_SHORT, Operation.CONV_BYTE_INT, Operation.CONV_INT_SHORT);
+        addConversion(TYPE_BYTE, TYPE_LONG, Operation.CONV_BYTE_INT, Operation.CONV_INT_LONG);
+        addConversion(TYPE_BYTE, TYPE_FLOAT, Operation.CONV_BYTE_INT, Operation.CONV_INT_FLOAT);
+        addConversion(TYPE_BYTE, TYPE_DOUBLE, Operation.CONV_BYTE_INT, Operation.CONV_INT_DOUBLE);
+        addConversion(TYPE_SHORT, TYPE_LONG, Operation.CONV_SHORT_INT, Operation.CONV_INT_LONG);
+        addConversion(TYPE_SHORT, TYPE_FLOAT, Operation.CONV_SHORT_INT, Operation.CONV_INT_FLOAT);
+        addConversion(TYPE_SHORT, TYPE_DOUBLE, Operation.CONV_SHORT_INT, Operation.CONV_INT_DOUBLE);
+    }
+
+    private static void addConversion(final UnaryType src, final UnaryType dst, final Operation... steps) {
+        CONVERSIONS[src.numericIndex][dst.numericIndex] = steps;
+    }
+
+    private static Operation[] getConversion(final Type src, final Type dst) {
+        if (src instanceof UnaryType && dst instanceof UnaryType) {
+            final int a = ((UnaryType) src).numericIndex;
+            final int b = ((UnaryType) dst).numericIndex;
+            if (a >= 0 && b >= 0) {
+                return CONVERSIONS[a][b];
+            }
+        }
+        return null;
+    }
+
+    // Key of a call to a module level function
+    private static final class CallSite {
+
+        public final Module env;
+        public final String base;
+        public final String[] labels;
+        private final int hash;
+
+        public CallSite(Module env, String base, String[] labels) {
+            this.env = env;
+            this.base = base;
+            this.labels = labels;
+            this.hash = 31 * (31 * System.identityHashCode(env) + base.hashCode()) + Arrays.hashCode(labels);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof CallSite) {
+                final CallSite other = (CallSite) obj;
+                return env == other.env && base.equals(other.base) && Arrays.equals(labels, other.labels);
+            }
+            return false;
+        }
+    }
+
+    private static final class ResolvedCall {
+
+        public final Type type;
+        public final Register fptr;
+
+        public ResolvedCall(Type type, Register fptr) {
+            this.type = type;
+            this.fptr = fptr;
+        }
+    }
+
+    private static final class DeferredFunction {
+
+        public final Path file;
+        public final Module module;
+        public final Triple<Scope, FunctionBodyContext, Type> info;
+
+        public DeferredFunction(Path file, Module module, Triple<Scope, FunctionBodyContext, Type> info) {
+            this.file = file;
+            this.module = module;
+            this.info = info;
+        }
+    }
 
     static {
         UNI_OP_MAPPING.put("+", UnaryOperator.ADD);
@@ -91,14 +187,27 @@ public class LocalVisitor extends OkmBaseVisitor<Object> {
         }
     };
 
-    private final List<Path> SEARCH_PATH;
+    private final ModuleResolver RESOLVER;
 
     private final Map<Path, Module> LOADED_MODULES = new HashMap<>();
     private final LinkedList<Value> VALUE_STACK = new LinkedList<>();
 
     private final Map<String, FuncBlock> RESULT = new LinkedHashMap<>();
+
+    // Module level functions that call sites already resolved to
+    private final Map<CallSite, ResolvedCall> RESOLVED_CALLS = new HashMap<>();
+    // callee type -> argument types -> result of a call that type checked
+    private final Map<Type, Map<TypeList, Type>> CHECKED_CALLS = new IdentityHashMap<>();
+    private final Set<String> DEFINED_FUNCS = new HashSet<>();
     private final List<String> MODULE_INITS = new ArrayList<>();
+    // Initializers of the files passed to compile (not imported ones)
+    private final List<String> ENTRY_INITS = new ArrayList<>();
+    // Public functions of the files passed to compile, callable from outside
+    private final List<String> ENTRY_EXPORTS = new ArrayList<>();
+    private final Set<Path> ENTRY_FILES = new HashSet<>();
     private final List<Statement> PRE_INIT_STMTS = new ArrayList<>();
+    // Function bodies that lazy mode did not lower yet
+    private final Map<String, DeferredFunction> DEFERRED = new HashMap<>();
 
     private long lambdaId = 0;
 
@@ -117,17 +226,60 @@ public class LocalVisitor extends OkmBaseVisitor<Object> {
 
     private List<Triple<Scope, FunctionBodyContext, Type>> pendingFunctions;
 
+    // If set, functions are handed over as soon as they are lowered
+    // instead of being collected in the result of compile
+    private BiConsumer<String, FuncBlock> functionSink;
+
+    // If set, parse trees are reused across compilations. Otherwise
+    // function bodies are dropped from the tree once they are lowered
+    private ParseCache parseCache;
+
+    // If set, function bodies are only lowered when lower is called
+    private boolean lazy;
+
+    // Where syntax errors of the parsed files go
+    private ANTLRErrorListener errorListener = ConsoleErrorListener.INSTANCE;
+
     public LocalVisitor() {
         this(Arrays.asList());
     }
 
     public LocalVisitor(final List<Path> moduleSearchPath) {
-        this.SEARCH_PATH = moduleSearchPath == null ? Arrays.asList() : moduleSearchPath;
+        this.RESOLVER = new ModuleResolver(moduleSearchPath == null ? Arrays.asList() : moduleSearchPath);
+    }
+
+    public void setFunctionSink(final BiConsumer<String, FuncBlock> sink) {
+        this.functionSink = sink;
+    }
+
+    public void setParseCache(final ParseCache cache) {
+        this.parseCache = cache;
+    }
+
+    public void setLazy(final boolean lazy) {
+        this.lazy = lazy;
+    }
+
+    public void setErrorListener(final ANTLRErrorListener listener) {
+        this.errorListener = listener;
     }
 
     public Map<String, FuncBlock> compile(final List<Path> ps) {
         RESULT.clear();
+        DEFINED_FUNCS.clear();
+        DEFERRED.clear();
+        ENTRY_INITS.clear();
+        ENTRY_EXPORTS.clear();
+        ENTRY_FILES.clear();
+        ps.forEach(p -> ENTRY_FILES.add(p.normalize().toAbsolutePath()));
+        RESOLVED_CALLS.clear();
+        CHECKED_CALLS.clear();
         lambdaId = 0;
+        // Each compilation gets a fresh pool of registers
+        Register.clearPool();
+        EnumType.clearKeys();
+        Pointer.clearCache();
+        FuncType.clearCache();
         ps.forEach(this::processModule);
 
         // define a function called unit @init() { }
@@ -141,35 +293,53 @@ public class LocalVisitor extends OkmBaseVisitor<Object> {
         }
         // Use RETURN_UNIT
         initializer.add(new Statement(Operation.RETURN_UNIT));
-        RESULT.put("@init", new FuncBlock(new FuncType(TYPE_UNIT), initializer));
+        emitFunction("@init", new FuncBlock(FuncType.of(TYPE_UNIT), initializer));
 
         Register.resetCounter();
 
         return Collections.unmodifiableMap(RESULT);
     }
 
+    public List<String> getEntryInitializers() {
+        return Collections.unmodifiableList(ENTRY_INITS);
+    }
+
+    public List<String> getEntryExports() {
+        return Collections.unmodifiableList(ENTRY_EXPORTS);
+    }
+
+    private void emitFunction(final String name, final FuncBlock block) {
+        if (functionSink == null) {
+            RESULT.put(name, block);
+        } else {
+            functionSink.accept(name, block);
+        }
+    }
+
     public Module processModule(final Path p) {
         // Make sure path is absolute and normalized
         final Path path = p.normalize().toAbsolutePath();
-        LOGGER.info("Loading file: " + path);
+        Trace.event(Trace.Category.PARSE, "Loading file: ", path);
         if (!LOADED_MODULES.containsKey(path)) {
-            LOGGER.info("Processing file since it is new");
+            Trace.event(Trace.Category.PARSE, "Processing file since it is new");
             try {
-                final OkmLexer lexer = new OkmLexer(CharStreams.fromPath(path));
-                final CommonTokenStream tokens = new CommonTokenStream(lexer);
-                final OkmParser parser = new OkmParser(tokens);
+                final ProgramContext tree = parseCache == null
+                        ? ParseCache.parse(path, errorListener)
+                        : parseCache.get(path, errorListener);
 
                 // Save and update state
                 final Path oldFile = currentFile;
                 currentFile = path;
+                Trace.enterFile(path);
                 final Module oldModule = currentModule;
                 LOADED_MODULES.put(path, currentModule = new Module());
 
-                visit(parser.program());
-                LOGGER.info("Done processing, caching result");
+                visit(tree);
+                Trace.event(Trace.Category.PARSE, "Done processing, caching result");
 
                 // Restore state
                 currentFile = oldFile;
+                Trace.enterFile(oldFile);
                 currentModule = oldModule;
             } catch (IOException ex) {
                 throw new CannotLoadFileException(path, ex);
@@ -187,101 +357,181 @@ public class LocalVisitor extends OkmBaseVisitor<Object> {
         visitChildren(ctx);
 
         // Process functions after imported symbols are processed
+        processPendingFunctions();
+        pendingFunctions = oldPendingFunctions;
+        return null;
+    }
+
+    private void processPendingFunctions() {
         for (int i = 0; i < pendingFunctions.size(); ++i) {
             final Triple<Scope, FunctionBodyContext, Type> funcInfo = pendingFunctions.get(i);
-            final FunctionBodyContext fctx = funcInfo.getB();
 
             // This scope already contains the local parameters
             currentScope = funcInfo.getA();
             final String mangledName = currentScope.getProcessedName(NAMING_STRAT, currentScope.functionName);
 
-            if (RESULT.containsKey(mangledName)) {
+            if (!DEFINED_FUNCS.add(mangledName)) {
                 throw new DuplicateSymbolException(currentScope.functionName);
             }
 
-            // Define the return type of the function
-            conformingType = funcInfo.getC();
+            // if function has the same name as the module and takes no parameters
+            final String synthName = currentScope.functionName.substring(0, currentScope.functionName.length() - 1) + ".okm";
+            if (currentFile.endsWith(synthName)) {
+                MODULE_INITS.add(mangledName);
+                if (ENTRY_FILES.contains(currentFile)) {
+                    ENTRY_INITS.add(mangledName);
+                }
+            }
+            if (ENTRY_FILES.contains(currentFile)
+                    && currentModule.get(currentScope.functionName).visibility == Visibility.PUBLIC) {
+                ENTRY_EXPORTS.add(mangledName);
+            }
 
-            // Allocate function statement buffer
-            funcStmts = new ArrayList<>();
+            // Lambdas found in the body are appended to pendingFunctions
+            // and are handled by this loop as well
+            pendingFunctions.set(i, null);
+            if (lazy) {
+                DEFERRED.put(mangledName, new DeferredFunction(currentFile, currentModule, funcInfo));
+            } else {
+                lowerFunction(mangledName, funcInfo);
+            }
 
-            if (fctx.nativeFFI == null) {
-                // Callee retrieves arguments
-                for (final Map.Entry<String, Type> param : currentScope.getCurrentLocals()) {
-                    final Register slot = Register.makeNamed(currentScope.getProcessedName(NAMING_STRAT, param.getKey()));
-                    final Type t = param.getValue();
-                    final Statement stmt = new Statement(t.isFloatPoint() ? Operation.POP_PARAM_FLOAT : Operation.POP_PARAM_INT, slot);
-                    stmt.setDataSize(t.getSize());
-                    funcStmts.add(stmt);
-                }
+            // Make currentScope null
+            currentScope = null;
+        }
+    }
 
-                // Process function body here
-                LOGGER.info("Process function body of " + currentScope.functionName);
-                if (fctx.bodyBlock == null) {
-                    // The expression is returned as if it was in a
-                    // block with a single return statement
-                    processReturn((Type) visit(fctx.bodyExpr));
-                } else {
-                    // Let the block visitor handle the function body
-                    visitBlock(fctx.bodyBlock);
-                }
+    // Lowers a function deferred by lazy mode, returns null if there is no
+    // such function (or if it was lowered already)
+    public FuncBlock lower(final String name) {
+        final DeferredFunction deferred = DEFERRED.remove(name);
+        if (deferred == null) {
+            return null;
+        }
 
-                // Functions *must* end with either a branching instruction
-                // next if block will be true If funcStmts does not end with a branch op
-                if (funcStmts.isEmpty() ? true : !funcStmts.get(funcStmts.size() - 1).op.branches()) {
-                    // If the return type is unit, we will add it
-                    if (conformingType.isSameType(TYPE_UNIT)) {
-                        funcStmts.add(new Statement(Operation.RETURN_UNIT));
-                    } else {
-                        throw new RuntimeException("Function " + currentScope.functionName + " does not return!");
-                    }
+        // Save
+        final Path oldFile = currentFile;
+        final Module oldModule = currentModule;
+        final List<Triple<Scope, FunctionBodyContext, Type>> oldPendingFunctions = pendingFunctions;
+        final BiConsumer<String, FuncBlock> oldSink = functionSink;
+        final String oldPrefix = Register.getAdditionalTemporaryPrefix();
+
+        currentFile = deferred.file;
+        Trace.enterFile(currentFile);
+        currentModule = deferred.module;
+        pendingFunctions = new ArrayList<>();
+        // Temporaries of the front end never have the optimizer's prefix
+        Register.setAdditionalTemporaryPrefix("");
+        Register.resetCounter();
+
+        final FuncBlock[] lowered = new FuncBlock[1];
+        functionSink = (n, block) -> lowered[0] = block;
+        try {
+            currentScope = deferred.info.getA();
+            lowerFunction(name, deferred.info);
+            currentScope = null;
+
+            // Lambdas of the body are deferred like everything else
+            processPendingFunctions();
+        } finally {
+            // Restore
+            currentFile = oldFile;
+            Trace.enterFile(oldFile);
+            currentModule = oldModule;
+            pendingFunctions = oldPendingFunctions;
+            functionSink = oldSink;
+            Register.setAdditionalTemporaryPrefix(oldPrefix);
+        }
+        return lowered[0];
+    }
+
+    // currentScope must be the scope of the function
+    private void lowerFunction(final String mangledName, final Triple<Scope, FunctionBodyContext, Type> funcInfo) {
+        final FunctionBodyContext fctx = funcInfo.getB();
+
+        // Define the return type of the function
+        conformingType = funcInfo.getC();
+
+        // Allocate function statement buffer
+        funcStmts = new ArrayList<>();
+
+        if (fctx.nativeFFI == null) {
+            // Callee retrieves arguments
+            for (final Map.Entry<String, Type> param : currentScope.getCurrentLocals()) {
+                final Register slot = Register.makeNamed(currentScope.getProcessedName(NAMING_STRAT, param.getKey()));
+                final Type t = param.getValue();
+                final Statement stmt = new Statement(t.isFloatPoint() ? Operation.POP_PARAM_FLOAT : Operation.POP_PARAM_INT, slot);
+                stmt.setDataSize(t.getSize());
+                funcStmts.add(stmt);
+            }
+
+            // Process function body here
+            Trace.event(Trace.Category.LOWER, "Process function body of ", currentScope.functionName);
+            if (fctx.bodyBlock == null) {
+                // The expression is returned as if it was in a
+                // block with a single return statement
+                processReturn((Type) visit(fctx.bodyExpr));
+            } else {
+                // Let the block visitor handle the function body
+                visitBlock(fctx.bodyBlock);
+            }
+
+            // Functions *must* end with either a branching instruction
+            // next if block will be true If funcStmts does not end with a branch op
+            if (funcStmts.isEmpty() ? true : !funcStmts.get(funcStmts.size() - 1).op.branches()) {
+                // If the return type is unit, we will add it
+                if (conformingType.isSameType(TYPE_UNIT)) {
+                    funcStmts.add(new Statement(Operation.RETURN_UNIT));
+                } else {
+                    throw new RuntimeException("Function " + currentScope.functionName + " does not return!");
                 }
+            }
 
-                // In addition, in anything jumps beyond the function's body, it also means function failed to return
-                boolean appendReturn = false;
-                for (final Statement jmpOp : funcStmts) {
-                    if (jmpOp.op.branchesToAddress()) {
-                        final Label label = (Label) jmpOp.dst;
-                        if (label.getAddress() >= funcStmts.size()) {
-                            // If the return type is unit, we will add it
-                            if (conformingType.isSameType(TYPE_UNIT)) {
-                                // Just in case for some reason the function ends at 10 and it jumps to 20
-                                label.setAddress(funcStmts.size());
-                                appendReturn = true;
-                            } else {
-                                throw new RuntimeException("Function " + currentScope.functionName + " does not return!");
-                            }
+            // In addition, in anything jumps beyond the function's body, it also means function failed to return
+            boolean appendReturn = false;
+            for (final Statement jmpOp : funcStmts) {
+                if (jmpOp.op.branchesToAddress()) {
+                    final Label label = (Label) jmpOp.dst;
+                    if (label.getAddress() >= funcStmts.size()) {
+                        // If the return type is unit, we will add it
+                        if (conformingType.isSameType(TYPE_UNIT)) {
+                            // Just in case for some reason the function ends at 10 and it jumps to 20
+                            label.setAddress(funcStmts.size());
+                            appendReturn = true;
+                        } else {
+                            throw new RuntimeException("Function " + currentScope.functionName + " does not return!");
                         }
                     }
                 }
-                if (appendReturn) funcStmts.add(new Statement(Operation.RETURN_UNIT));
-            } else {
-                final String nativeName = fctx.nativeFFI.getText();
-                LOGGER.info("Process native function " + currentScope.functionName + " => " + nativeName);
-                funcStmts.add(new Statement(Operation.CALL_NATIVE, Register.makeNamed(nativeName)));
             }
+            if (appendReturn) funcStmts.add(new Statement(Operation.RETURN_UNIT));
+        } else {
+            final String nativeName = fctx.nativeFFI.getText();
+            Trace.event(Trace.Category.LOWER, "Process native function ", currentScope.functionName, " => ", nativeName);
+            funcStmts.add(new Statement(Operation.CALL_NATIVE, Register.makeNamed(nativeName)));
+        }
 
-            // if function has the same name as the module and takes no parameters
-            final String synthName = currentScope.functionName.substring(0, currentScope.functionName.length() - 1) + ".okm";
-            if (currentFile.endsWith(synthName)) {
-                MODULE_INITS.add(mangledName);
-            }
+        emitFunction(mangledName, new FuncBlock((FuncType) currentModule.get(currentScope.functionName).type, funcStmts));
 
-            RESULT.put(mangledName, new FuncBlock((FuncType) currentModule.get(currentScope.functionName).type, funcStmts));
+        // The body is lowered, let go of it so its subtree (and the
+        // tokens it holds) can be collected before the module is done
+        if (parseCache == null) {
+            releaseBody(fctx);
+        }
 
-            // VALUE_STACK should be empty, but in case it isn't
-            // functions have separate stack-frames. Clear them
-            // and let gc cleanup!
-            VALUE_STACK.clear();
+        // VALUE_STACK should be empty, but in case it isn't
+        // functions have separate stack-frames. Clear them
+        // and let gc cleanup!
+        VALUE_STACK.clear();
 
-            // Reset counter
-            Register.resetCounter();
+        // Reset counter
+        Register.resetCounter();
+    }
 
-            // Make currentScope null
-            currentScope = null;
-        }
-        pendingFunctions = oldPendingFunctions;
-        return null;
+    private static void releaseBody(final FunctionBodyContext fctx) {
+        fctx.children = null;
+        fctx.bodyBlock = null;
+        fctx.bodyExpr = null;
     }
 
     @Override
@@ -309,62 +559,9 @@ public class LocalVisitor extends OkmBaseVisitor<Object> {
 
     @Override
     public Module visitImportPath(final ImportPathContext ctx) {
-        Path file = currentFile.getParent();
-
-        int trySearchPathIdx = -1;
-        // Unshift directories
-        for (int i = 0; i < ctx.unshift.size(); ++i) {
-            if ((file = file.getParent()) == null) {
-                final int idx = ++trySearchPathIdx;
-                if (idx < SEARCH_PATH.size()) {
-                    file = SEARCH_PATH.get(idx);
-                    i = -1; // reset loop state
-                    continue;
-                }
-                throw new CannotLoadFileException(null);
-            }
-        }
-
-        // Synthesize the file
-        final StringBuilder filePath = new StringBuilder();
-        filePath.append('.');
-        for (int i = ctx.unshift.size(); i < ctx.getChildCount(); i += 2) {
-            filePath.append('/').append(ctx.getChild(i).getText());
-        }
-        filePath.append(".okm");
-
-        final Path newPath = file.resolve(filePath.toString()).normalize();
+        final Path newPath = RESOLVER.resolve(currentFile.getParent(), ctx);
         final Module imported = processModule(newPath);
-
-        final Module temporary = new Module();
-
-        // Add a list of accessible symbols into the temporary module
-        for (final Map.Entry<String, Module.Entry> entry : imported.entrySet()) {
-            final Module.Entry value = entry.getValue();
-            switch (value.visibility) {
-                case PUBLIC:
-                    // always keep
-                    break;
-                case PROTECTED:
-                    // keep if same or subdirectory
-                    if (currentFile.startsWith(newPath.getParent())) break;
-                    continue;
-                case INTERNAL:
-                    // keep if same directory
-                    if (currentFile.getParent().equals(newPath.getParent())) break;
-                    continue;
-                case PRIVATE:
-                    // what is the point? discard symbol
-                    continue;
-                default:
-                    throw new AssertionError("Unhandled visibility of " + entry.getValue() + " when importing");
-            }
-
-            // The imported symbols take the new declared visibility
-            temporary.put(entry.getKey(), value.changeVisibility(currentVisibility));
-        }
-
-        return temporary;
+        return RESOLVER.exportsOf(newPath, imported, currentFile, currentVisibility);
     }
 
     @Override
@@ -400,7 +597,7 @@ public class LocalVisitor extends OkmBaseVisitor<Object> {
         final Module temporary = visitImportPath(ctx.path);
         if (ctx.sym == null) {
             // user does not specify which symbols to include, import all
-            LOGGER.info("Import all to " + currentFile + " as " + currentVisibility + " " + temporary);
+            Trace.event(Trace.Category.LOWER, "Import all to ", currentFile, " as ", currentVisibility, " ", temporary);
             currentModule.putAll(temporary);
         } else {
             final List<String> list = visitImportSymb(ctx.sym);
@@ -410,7 +607,7 @@ public class LocalVisitor extends OkmBaseVisitor<Object> {
                     // Only possiblity is if symbol does not exist.
                     throw new UndefinedSymbolException(sym);
                 }
-                LOGGER.info("Import to " + currentFile + " as " + currentVisibility + " symbol " + sym);
+                Trace.event(Trace.Category.LOWER, "Import to ", currentFile, " as ", currentVisibility, " symbol ", sym);
                 currentModule.put(sym, ent);
             }
         }
@@ -420,7 +617,7 @@ public class LocalVisitor extends OkmBaseVisitor<Object> {
     @Override
     public Type visitType(TypeContext ctx) {
         if (ctx.inner != null) {
-            return new Pointer(visitType(ctx.inner));
+            return Pointer.of(visitType(ctx.inner));
         }
 
         if (ctx.ret != null) {
@@ -429,7 +626,7 @@ public class LocalVisitor extends OkmBaseVisitor<Object> {
             for (int i = 0; i < params.length; ++i) {
                 params[i] = visitType((TypeContext) ctx.getChild((i + 1) * 2));
             }
-            return new FuncType(ret, params);
+            return FuncType.of(ret, params);
         }
 
         if (ctx.list != null) {
@@ -506,8 +703,8 @@ public class LocalVisitor extends OkmBaseVisitor<Object> {
             params.add(0, self);
         }
         final Type[] paramType = params.stream().map(Tuple::getB).toArray(Type[]::new);
-        LOGGER.info("Declare " + vis + " function " + name);
-        final FuncType deducedType = new FuncType(ret, paramType);
+        Trace.event(Trace.Category.LOWER, "Declare ", vis, " function ", name);
+        final FuncType deducedType = FuncType.of(ret, paramType);
         currentModule.put(name, Module.Entry.newVariable(vis, deducedType, currentFile));
 
         // Construct the function scope since all the required info is already present
@@ -556,15 +753,15 @@ public class LocalVisitor extends OkmBaseVisitor<Object> {
         for (final Tuple<String, Type> newVar : newVars) {
             if (currentScope != null) {
                 // This is a local variable
-                LOGGER.info("Declare local variable " + newVar.getA() + " as type " + newVar.getB());
+                Trace.event(Trace.Category.LOWER, "Declare local variable ", newVar.getA(), " as type ", newVar.getB());
                 currentScope.put(newVar.getA(), newVar.getB());
             } else if (currentAllocTable != null) {
                 // This is part of a struct
-                LOGGER.info("Declare class/struct field " + newVar.getA() + " as type " + newVar.getB());
+                Trace.event(Trace.Category.LOWER, "Declare class/struct field ", newVar.getA(), " as type ", newVar.getB());
                 currentAllocTable.putField(newVar.getA(), newVar.getB());
             } else {
                 // This is a module level variable
-                LOGGER.info("Declare " + currentVisibility + " variable " + newVar.getA() + " as type " + newVar.getB());
+                Trace.event(Trace.Category.LOWER, "Declare ", currentVisibility, " variable ", newVar.getA(), " as type ", newVar.getB());
                 currentModule.put(newVar.getA(), Module.Entry.newVariable(currentVisibility, newVar.getB(), currentFile));
             }
         }
@@ -585,7 +782,7 @@ public class LocalVisitor extends OkmBaseVisitor<Object> {
         final String name = ctx.name.getText();
         final String[] keys = ctx.list == null ? new String[0] : visitEnumList(ctx.list);
         final EnumType type = EnumType.makeEnum(name, keys);
-        LOGGER.info("Declare " + currentVisibility + " " + type + " with keys " + Arrays.toString(keys));
+        Trace.event(Trace.Category.LOWER, "Declare ", currentVisibility, " ", type, " with keys ", Arrays.asList(keys));
         final Module.Entry entry = Module.Entry.newType(currentVisibility, type, currentFile);
         currentModule.put(name, entry);
         return null;
@@ -596,7 +793,7 @@ public class LocalVisitor extends OkmBaseVisitor<Object> {
         final String name = ctx.name.getText();
         final StructType type = new StructType();
         makeStruct(type, ctx.list);
-        LOGGER.info("Declare " + currentVisibility + " " + type);
+        Trace.event(Trace.Category.LOWER, "Declare ", currentVisibility, " ", type);
         final Module.Entry entry = Module.Entry.newType(currentVisibility, type, currentFile);
         currentModule.put(name, entry);
         return null;
@@ -607,7 +804,7 @@ public class LocalVisitor extends OkmBaseVisitor<Object> {
         final String name = ctx.name.getText();
         final ClassType type = new ClassType(name);
         makeStruct(type, ctx.list);
-        LOGGER.info("Declare " + currentVisibility + " " + type);
+        Trace.event(Trace.Category.LOWER, "Declare ", currentVisibility, " ", type);
         final Module.Entry entry = Module.Entry.newType(currentVisibility, type, currentFile);
         currentModule.put(name, entry);
 
@@ -624,8 +821,8 @@ public class LocalVisitor extends OkmBaseVisitor<Object> {
             final Tuple<String, FuncType> pair = makeMethod(Visibility.PRIVATE,
                     preMangled,
                     method.ret, method.params, method.body,
-                    new Tuple<>(method.selfPtr.getText(), new Pointer<>(type.allocate())));
-            LOGGER.info("Declare method " + methodName + " under class " + name);
+                    new Tuple<>(method.selfPtr.getText(), Pointer.of(type.allocate())));
+            Trace.event(Trace.Category.LOWER, "Declare method ", methodName, " under class ", name);
 
             final String mangledName = pair.getA();
             final String selector = methodName + mangledName.substring(preMangled.length());
@@ -645,7 +842,7 @@ public class LocalVisitor extends OkmBaseVisitor<Object> {
         for (int i = 0; i < methodGlobalNames.size(); ++i) {
             final String glbName = methodGlobalNames.get(i);
             final Register flabel = Register.makeNamed(NAMING_STRAT.name(currentModule.get(glbName), glbName));
-            final Statement fillVtable = new Statement(Operation.ALLOC_GLOBAL, flabel, new Fixnum(i * 64), vtableSlot);
+            final Statement fillVtable = new Statement(Operation.ALLOC_GLOBAL, flabel, Fixnum.valueOf(i * 64), vtableSlot);
             fillVtable.setDataSize(64);
             PRE_INIT_STMTS.add(fillVtable);
         }
@@ -717,7 +914,7 @@ public class LocalVisitor extends OkmBaseVisitor<Object> {
         stmt.setDataSize(valueType.getSize());
         funcStmts.add(stmt);
 
-        LOGGER.info("Declare and assign type " + valueType + " to " + name);
+        Trace.event(Trace.Category.TYPES, "Declare and assign type ", valueType, " to ", name);
         return null;
     }
 
@@ -826,7 +1023,7 @@ public class LocalVisitor extends OkmBaseVisitor<Object> {
         VALUE_STACK.push(mut);
 
         Type ftype = null;
-        String fsite = null;
+        Register fptr = null;
         final List<Tuple<String, Type>> args = ctx.exprs == null ? Collections.EMPTY_LIST : visitFArgsList(ctx.exprs);
         if (args.isEmpty()) {
             // unit transfer(block :unit()) = block()
@@ -835,23 +1032,41 @@ public class LocalVisitor extends OkmBaseVisitor<Object> {
 
             final Type local = currentScope.get(base);
             if (local != null && local.tryPerformCall() != null) {
-                fsite = base;
+                fptr = Register.makeNamed(currentScope.getProcessedName(NAMING_STRAT, base));
                 ftype = local;
             }
         }
 
+        final String[] labels = new String[args.size()];
+        final Type[] argTypes = new Type[labels.length];
+        for (int i = 0; i < labels.length; ++i) {
+            final Tuple<String, Type> arg = args.get(i);
+            labels[i] = arg.getA();
+            argTypes[i] = arg.getB();
+        }
+
         if (ftype == null) {
-            final String fname = Module.makeFuncName(base, args.stream().map(Tuple::getA).toArray(String[]::new));
-            if ((ftype = currentScope.get(fname)) == null) {
-                throw new UndefinedSymbolException(fname);
+            // Locals cannot have mangled names, so the function is always
+            // found at module level and the result only depends on the module
+            final CallSite site = new CallSite(currentScope.getEnvironment(), base, labels);
+            ResolvedCall resolved = RESOLVED_CALLS.get(site);
+            if (resolved == null) {
+                final String fname = Module.makeFuncName(base, labels);
+                final Type type = currentScope.get(fname);
+                if (type == null) {
+                    throw new UndefinedSymbolException(fname);
+                }
+                resolved = new ResolvedCall(type, Register.makeNamed(currentScope.getProcessedName(NAMING_STRAT, fname)));
+                RESOLVED_CALLS.put(site, resolved);
             }
-            fsite = fname;
+            fptr = resolved.fptr;
+            ftype = resolved.type;
         }
 
         // Update function pointer here (it is resolved)
-        mut.setValue(Register.makeNamed(currentScope.getProcessedName(NAMING_STRAT, fsite)));
+        mut.setValue(fptr);
 
-        return performCall(ftype, args.stream().map(Tuple::getB).toArray(Type[]::new));
+        return performCall(ftype, argTypes);
     }
 
     @Override
@@ -914,41 +1129,35 @@ public class LocalVisitor extends OkmBaseVisitor<Object> {
                 }
 
                 // Implement type casting
-                final String synthName = src + "_" + dst;
-                switch (synthName) {
-                    // Single instruction conversions:
-                    case "byte_int":     return applyRegisterTransfer(val, Operation.CONV_BYTE_INT);
-                    case "short_int":    return applyRegisterTransfer(val, Operation.CONV_SHORT_INT);
-                    case "long_int":     return applyRegisterTransfer(val, Operation.CONV_LONG_INT);
-                    case "int_byte":     return applyRegisterTransfer(val, Operation.CONV_INT_BYTE);
-                    case "int_short":    return applyRegisterTransfer(val, Operation.CONV_INT_SHORT);
-                    case "int_long":     return applyRegisterTransfer(val, Operation.CONV_INT_LONG);
-                    case "int_float":    return applyRegisterTransfer(val, Operation.CONV_INT_FLOAT);
-                    case "long_float":   return applyRegisterTransfer(val, Operation.CONV_LONG_FLOAT);
-                    case "int_double":   return applyRegisterTransfer(val, Operation.CONV_INT_DOUBLE);
-                    case "long_double":  return applyRegisterTransfer(val, Operation.CONV_LONG_DOUBLE);
-                    case "float_double": return applyRegisterTransfer(val, Operation.CONV_FLOAT_DOUBLE);
-
-                    // Multi-instruction conversions:
-                    case "byte_short":   return applyRegisterTransfer(val, Operation.CONV_BYTE_INT, Operation.CONV_INT_SHORT);
-                    case "byte_long":    return applyRegisterTransfer(val, Operation.CONV_BYTE_INT, Operation.CONV_INT_LONG);
-                    case "byte_float":   return applyRegisterTransfer(val, Operation.CONV_BYTE_INT, Operation.CONV_INT_FLOAT);
-                    case "byte_double":  return applyRegisterTransfer(val, Operation.CONV_BYTE_INT, Operation.CONV_INT_DOUBLE);
-                    case "short_long":   return applyRegisterTransfer(val, Operation.CONV_SHORT_INT, Operation.CONV_INT_LONG);
-                    case "short_float":  return applyRegisterTransfer(val, Operation.CONV_SHORT_INT, Operation.CONV_INT_FLOAT);
-                    case "short_double": return applyRegisterTransfer(val, Operation.CONV_SHORT_INT, Operation.CONV_INT_DOUBLE);
-
-                    // Failure case:
-                    default:
-                        throw new AssertionError("Unknown conversion rule: " + synthName);
+                final Operation[] steps = getConversion(src, dst);
+                if (steps == null) {
+                    throw new AssertionError("Unknown conversion rule: " + src + "_" + dst);
                 }
+                return applyRegisterTransfer(val, steps);
             }
             return val;
         }
     }
 
+    private Type checkCall(final Type base, final Type[] args) {
+        Map<TypeList, Type> checked = CHECKED_CALLS.get(base);
+        if (checked == null) {
+            CHECKED_CALLS.put(base, checked = new HashMap<>());
+        }
+
+        final TypeList key = new TypeList(args);
+        Type result = checked.get(key);
+        if (result == null) {
+            result = base.tryPerformCall(args);
+            if (result != null) {
+                checked.put(key, result);
+            }
+        }
+        return result;
+    }
+
     private Type performCall(Type base, Type... args) {
-        final Type result = base.tryPerformCall(args);
+        final Type result = checkCall(base, args);
         if (result == null) {
             throw new UndefinedOperationException("Type " + base + " cannot be called with arguments: " + Arrays.toString(args));
         }
@@ -984,7 +1193,7 @@ public class LocalVisitor extends OkmBaseVisitor<Object> {
         funcStmts.add(stmt);
         VALUE_STACK.push(temporary);
 
-        LOGGER.info("Call to type " + base + " yields " + result);
+        Trace.event(Trace.Category.TYPES, "Call to type ", base, " yields ", result);
         return result;
     }
 
@@ -1131,7 +1340,7 @@ public class LocalVisitor extends OkmBaseVisitor<Object> {
         if (!validMove) {
             throw new UndefinedOperationException("Bad storage pointer of " + dest.getText());
         }
-        LOGGER.info("Assign type " + valueType + " to storage of type " + declType);
+        Trace.event(Trace.Category.TYPES, "Assign type ", valueType, " to storage of type ", declType);
         return valueType;
     }
 
@@ -1159,8 +1368,8 @@ public class LocalVisitor extends OkmBaseVisitor<Object> {
             throw new UndefinedOperationException("Bad storage pointer of " + value.getText() + ", prev " + lastInstr);
         }
         VALUE_STACK.push(temporary);
-        final Pointer ptr = new Pointer(valueType);
-        LOGGER.info("Create " + ptr);
+        final Pointer ptr = Pointer.of(valueType);
+        Trace.event(Trace.Category.TYPES, "Create ", ptr);
         return ptr;
     }
 
@@ -1400,7 +1609,7 @@ public class LocalVisitor extends OkmBaseVisitor<Object> {
         }
         VALUE_STACK.push(applyRegisterTransfer(temporary, cleanupSeq));
 
-        LOGGER.info(lhs + " " + name + " " + rhs + " yields " + result);
+        Trace.event(Trace.Category.TYPES, () -> lhs + " " + name + " " + rhs + " yields " + result);
         return result;
     }
 
@@ -1461,12 +1670,23 @@ public class LocalVisitor extends OkmBaseVisitor<Object> {
             }
 
             final Register vtableAddress = Register.makeTemporary();
-            final Statement ldVtablePtr = new Statement(Operation.GET_ATTR, objValue, new Fixnum(base.getVtableOffset()), vtableAddress);
-            ldVtablePtr.setDataSize(64);    // pointers are 64 bits
-            funcStmts.add(ldVtablePtr);
+            final String vtableName = currentScope.getProcessedName(NAMING_STRAT, base.mangleVtableName());
+            if (vtableName != null) {
+                // Classes cannot be subclassed, the receiver's static type
+                // is its exact type. Refer to the vtable directly instead
+                // of loading it from the object.
+                final Statement ldVtablePtr = new Statement(Operation.REFER_VAR, Register.makeNamed(vtableName), vtableAddress);
+                ldVtablePtr.setDataSize(64);    // pointers are 64 bits
+                funcStmts.add(ldVtablePtr);
+            } else {
+                // vtable is private to another module
+                final Statement ldVtablePtr = new Statement(Operation.GET_ATTR, objValue, Fixnum.valueOf(base.getVtableOffset()), vtableAddress);
+                ldVtablePtr.setDataSize(64);    // pointers are 64 bits
+                funcStmts.add(ldVtablePtr);
+            }
 
             final Register methodAddress = Register.makeTemporary();
-            final Statement ldMethodPtr = new Statement(Operation.DEREF_GET_ATTR, vtableAddress, new Fixnum(base.getMethodOffsetInVtable(methodName)), methodAddress);
+            final Statement ldMethodPtr = new Statement(Operation.DEREF_GET_ATTR, vtableAddress, Fixnum.valueOf(base.getMethodOffsetInVtable(methodName)), methodAddress);
             ldMethodPtr.setDataSize(64);    // pointers are 64 bits
             funcStmts.add(ldMethodPtr);
 
@@ -1474,7 +1694,7 @@ public class LocalVisitor extends OkmBaseVisitor<Object> {
             callsite.setValue(methodAddress);
 
             // perform call to callsite with first parameter as pointer to the class object (`this` pointer)
-            return performCall(methodType, Stream.concat(Stream.of(new Pointer<>(base)), args.stream().map(Tuple::getB)).toArray(Type[]::new));
+            return performCall(methodType, Stream.concat(Stream.of(Pointer.of(base)), args.stream().map(Tuple::getB)).toArray(Type[]::new));
         }
         throw new UndefinedOperationException("Type " + t + " does not contain virtual methods");
     }
@@ -1521,7 +1741,9 @@ public class LocalVisitor extends OkmBaseVisitor<Object> {
 
         final Register temporary = Register.makeTemporary();
 
-        LOGGER.info(base + "." + attr + " yields " + result);
+        if (Trace.isTraced(Trace.Category.TYPES)) {
+            Trace.event(Trace.Category.TYPES, base + "." + attr + " yields " + result);
+        }
         final Statement stmt;
         if (base instanceof EnumType) {
             final EnumType enumBase = (EnumType) base;
@@ -1529,12 +1751,12 @@ public class LocalVisitor extends OkmBaseVisitor<Object> {
             if (ordinal < 0) {
                 throw new AssertionError("Unkown enum key of " + attr + " in type " + enumBase);
             }
-            stmt = new Statement(Operation.LOAD_NUMERAL, new Fixnum(ordinal, Integer.SIZE), temporary);
+            stmt = new Statement(Operation.LOAD_NUMERAL, Fixnum.valueOf(ordinal, Integer.SIZE), temporary);
         } else {
             stmt = new Statement(
                     (coreType != base) ? Operation.DEREF_GET_ATTR : Operation.GET_ATTR,
                     VALUE_STACK.pop(),
-                    new Fixnum(((AllocTable) coreType).getOffsetOfField(attr)),
+                    Fixnum.valueOf(((AllocTable) coreType).getOffsetOfField(attr)),
                     temporary);
         }
         stmt.setDataSize(result.getSize());
@@ -1609,7 +1831,7 @@ public class LocalVisitor extends OkmBaseVisitor<Object> {
         funcStmts.add(stmt);
         VALUE_STACK.push(applyRegisterTransfer(temporary, cleanupSeq));
 
-        LOGGER.info(name + " " + base + " yields " + result);
+        Trace.event(Trace.Category.TYPES, () -> name + " " + base + " yields " + result);
         return result;
     }
 
@@ -1617,7 +1839,7 @@ public class LocalVisitor extends OkmBaseVisitor<Object> {
     public Type visitExprSymbol(ExprSymbolContext ctx) {
         final String symbol = (String) visit(ctx.getChild(0));
 
-        LOGGER.info("Looking up symbol with internal name " + symbol);
+        Trace.event(Trace.Category.LOWER, "Looking up symbol with internal name ", symbol);
         final Type symType = currentScope.get(symbol);
 
         if (symType == null) {
@@ -1651,7 +1873,7 @@ public class LocalVisitor extends OkmBaseVisitor<Object> {
         funcStmts.add(stmt);
         VALUE_STACK.push(temporary);
 
-        LOGGER.info("Literal " + text + " is a bool");
+        Trace.event(Trace.Category.TYPES, "Literal ", text, " is a bool");
         return t;
     }
 
@@ -1691,7 +1913,7 @@ public class LocalVisitor extends OkmBaseVisitor<Object> {
         funcStmts.add(stmt);
         VALUE_STACK.push(temporary);
 
-        LOGGER.info("Literal " + text + " is a " + typeName);
+        Trace.event(Trace.Category.TYPES, "Literal ", text, " is a ", typeName);
         return t;
     }
 
@@ -1725,7 +1947,7 @@ public class LocalVisitor extends OkmBaseVisitor<Object> {
                         throw new IncompatibleTypeException(valueType, attrType);
                     }
                     final Value converted = insertConversion(VALUE_STACK.pop(), valueType, attrType);
-                    final Statement mov = new Statement(Operation.PUT_ATTR, temp, new Fixnum(newData.getOffsetOfField(attrName)), converted);
+                    final Statement mov = new Statement(Operation.PUT_ATTR, temp, Fixnum.valueOf(newData.getOffsetOfField(attrName)), converted);
                     mov.setDataSize(valueType.getSize());
                     funcStmts.add(mov);
                 }
@@ -1744,7 +1966,7 @@ public class LocalVisitor extends OkmBaseVisitor<Object> {
                 movAddress.setDataSize(64);     // pointers are 64 bits
                 funcStmts.add(movAddress);
 
-                final Statement movVtable = new Statement(Operation.PUT_ATTR, temp, new Fixnum(objType.getVtableOffset()), vtableAddress);
+                final Statement movVtable = new Statement(Operation.PUT_ATTR, temp, Fixnum.valueOf(objType.getVtableOffset()), vtableAddress);
                 movVtable.setDataSize(64);      // pointers are 64 bits
                 funcStmts.add(movVtable);
             }
@@ -87,6 +87,10 @@ public final class Module implements Serializable {
         return map.entrySet();
     }
 
+    public int size() {
+        return map.size();
+    }
+
     public boolean isEmpty() {
         return map.isEmpty();
     }
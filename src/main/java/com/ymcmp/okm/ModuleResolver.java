@@ -0,0 +1,158 @@
+package com.ymcmp.okm;
+
+import java.nio.file.Path;
+
+import java.util.Map;
+import java.util.List;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import com.ymcmp.okm.except.CannotLoadFileException;
+
+import com.ymcmp.okm.grammar.OkmParser.ImportPathContext;
+
+// Turns import paths into files and hands out the symbols of a module that
+// an importer can see. Both are cached: the same modules tend to be
+// imported over and over again.
+final class ModuleResolver {
+
+    // Where the importer is relative to the imported module
+    private static final int ACCESS_OTHER = 0;
+    private static final int ACCESS_SUBDIR = 1;
+    private static final int ACCESS_SAMEDIR = 2;
+
+    private static final int VIEW_COUNT = 3 * Visibility.values().length;
+
+    private static final class View {
+
+        // The module only grows, a different size means the view is stale
+        public final int sourceSize;
+        public final Module exports;
+
+        public View(int sourceSize, Module exports) {
+            this.sourceSize = sourceSize;
+            this.exports = exports;
+        }
+    }
+
+    // SEARCH_INDEX[i][k] is the k-th parent of the i-th search directory
+    private final Path[][] SEARCH_INDEX;
+
+    // importer directory -> (import path -> file)
+    private final Map<Path, Map<String, Path>> RESOLVED = new HashMap<>();
+    // module -> views indexed by access * |Visibility| + visibility
+    private final Map<Module, View[]> VIEWS = new IdentityHashMap<>();
+
+    public ModuleResolver(final List<Path> searchPath) {
+        SEARCH_INDEX = new Path[searchPath.size()][];
+        for (int i = 0; i < SEARCH_INDEX.length; ++i) {
+            int depth = 0;
+            for (Path p = searchPath.get(i); p != null; p = p.getParent()) {
+                ++depth;
+            }
+
+            final Path[] chain = SEARCH_INDEX[i] = new Path[depth];
+            Path p = searchPath.get(i);
+            for (int k = 0; k < depth; ++k, p = p.getParent()) {
+                chain[k] = p;
+            }
+        }
+    }
+
+    public Path resolve(final Path importerDir, final ImportPathContext ctx) {
+        Map<String, Path> known = RESOLVED.get(importerDir);
+        if (known == null) {
+            RESOLVED.put(importerDir, known = new HashMap<>());
+        }
+
+        final String spec = ctx.getText();
+        Path path = known.get(spec);
+        if (path == null) {
+            known.put(spec, path = locate(importerDir, ctx));
+        }
+        return path;
+    }
+
+    private Path locate(final Path importerDir, final ImportPathContext ctx) {
+        // Unshift directories, search path is used if the importer
+        // does not have enough parents
+        final int unshift = ctx.unshift.size();
+        Path file = importerDir;
+        for (int i = 0; i < unshift && file != null; ++i) {
+            file = file.getParent();
+        }
+        for (int idx = 0; file == null; ++idx) {
+            if (idx >= SEARCH_INDEX.length) {
+                throw new CannotLoadFileException(null);
+            }
+            if (unshift < SEARCH_INDEX[idx].length) {
+                file = SEARCH_INDEX[idx][unshift];
+            }
+        }
+
+        final int last = ctx.getChildCount() - 1;
+        for (int i = unshift; i < last; i += 2) {
+            file = file.resolve(ctx.getChild(i).getText());
+        }
+        return file.resolve(ctx.getChild(last).getText() + ".okm").normalize();
+    }
+
+    // The returned module is shared, it must not be modified
+    public Module exportsOf(final Path modulePath, final Module imported, final Path importerFile, final Visibility vis) {
+        final Path moduleDir = modulePath.getParent();
+        final int access;
+        if (importerFile.getParent().equals(moduleDir)) {
+            access = ACCESS_SAMEDIR;
+        } else if (importerFile.startsWith(moduleDir)) {
+            access = ACCESS_SUBDIR;
+        } else {
+            access = ACCESS_OTHER;
+        }
+
+        View[] views = VIEWS.get(imported);
+        if (views == null) {
+            VIEWS.put(imported, views = new View[VIEW_COUNT]);
+        }
+
+        final int slot = access * Visibility.values().length + vis.ordinal();
+        final View view = views[slot];
+        if (view != null && view.sourceSize == imported.size()) {
+            return view.exports;
+        }
+
+        final Module exports = filter(imported, access, vis);
+        views[slot] = new View(imported.size(), exports);
+        return exports;
+    }
+
+    private static Module filter(final Module imported, final int access, final Visibility vis) {
+        final Module temporary = new Module();
+
+        // Add a list of accessible symbols into the temporary module
+        for (final Map.Entry<String, Module.Entry> entry : imported.entrySet()) {
+            final Module.Entry value = entry.getValue();
+            switch (value.visibility) {
+                case PUBLIC:
+                    // always keep
+                    break;
+                case PROTECTED:
+                    // keep if same or subdirectory
+                    if (access != ACCESS_OTHER) break;
+                    continue;
+                case INTERNAL:
+                    // keep if same directory
+                    if (access == ACCESS_SAMEDIR) break;
+                    continue;
+                case PRIVATE:
+                    // what is the point? discard symbol
+                    continue;
+                default:
+                    throw new AssertionError("Unhandled visibility of " + entry.getValue() + " when importing");
+            }
+
+            // The imported symbols take the new declared visibility
+            temporary.put(entry.getKey(), value.changeVisibility(vis));
+        }
+        return temporary;
+    }
+}
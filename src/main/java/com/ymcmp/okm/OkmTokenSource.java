@@ -0,0 +1,330 @@
+package com.ymcmp.okm;
+
+import java.io.IOException;
+
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+
+import java.nio.channels.FileChannel;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.CodingErrorAction;
+
+import java.nio.file.Path;
+
+import java.util.Map;
+import java.util.HashMap;
+
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.TokenFactory;
+import org.antlr.v4.runtime.CommonTokenFactory;
+import org.antlr.v4.runtime.ANTLRErrorListener;
+
+import org.antlr.v4.runtime.misc.Pair;
+
+import com.ymcmp.okm.grammar.OkmParser;
+
+// Hand-written replacement of the generated OkmLexer, it must produce the
+// same tokens as the lexer rules in Okm.g4. Whitespace and comments are
+// skipped instead of being put on the hidden channel.
+public final class OkmTokenSource implements TokenSource {
+
+    private static final Map<String, Integer> KEYWORDS = new HashMap<>();
+
+    static {
+        KEYWORDS.put("import", OkmParser.IMPORT);
+        KEYWORDS.put("native", OkmParser.NATIVE);
+        KEYWORDS.put("if", OkmParser.IF);
+        KEYWORDS.put("else", OkmParser.ELSE);
+        KEYWORDS.put("while", OkmParser.WHILE);
+        KEYWORDS.put("public", OkmParser.PUBLIC);
+        KEYWORDS.put("protected", OkmParser.PROTECTED);
+        KEYWORDS.put("internal", OkmParser.INTERNAL);
+        KEYWORDS.put("private", OkmParser.PRIVATE);
+        KEYWORDS.put("byte", OkmParser.BYTE);
+        KEYWORDS.put("char", OkmParser.CHAR);
+        KEYWORDS.put("short", OkmParser.SHORT);
+        KEYWORDS.put("int", OkmParser.INT);
+        KEYWORDS.put("long", OkmParser.LONG);
+        KEYWORDS.put("float", OkmParser.FLOAT);
+        KEYWORDS.put("double", OkmParser.DOUBLE);
+        KEYWORDS.put("unit", OkmParser.UNIT);
+        KEYWORDS.put("bool", OkmParser.BOOL);
+        KEYWORDS.put("enum", OkmParser.ENUM);
+        KEYWORDS.put("struct", OkmParser.STRUCT);
+        KEYWORDS.put("class", OkmParser.CLASS);
+        KEYWORDS.put("return", OkmParser.RETURN);
+        KEYWORDS.put("break", OkmParser.BREAK);
+        KEYWORDS.put("continue", OkmParser.CONTINUE);
+        KEYWORDS.put("new", OkmParser.NEW);
+        KEYWORDS.put("true", OkmParser.TRUE);
+        KEYWORDS.put("false", OkmParser.FALSE);
+    }
+
+    private final String sourceName;
+    private final ANTLRErrorListener listener;
+    private final char[] data;
+    private final int length;
+    private final Pair<TokenSource, CharStream> source;
+
+    private TokenFactory<?> factory = CommonTokenFactory.DEFAULT;
+
+    private int pos = 0;
+    private int line = 1;
+
+    // ANTLR counts code points, not chars. Surrogate pairs before pos are
+    // counted so positions can be reported the same way. lineStart is a
+    // code point index
+    private int pairs = 0;
+    private int lineStart = 0;
+
+    // Token recognition errors are reported to listener
+    public OkmTokenSource(final CharBuffer buf, final String sourceName, final ANTLRErrorListener listener) {
+        // Decoded buffers are backed by an array, lex straight from it
+        if (buf.hasArray() && buf.arrayOffset() == 0 && buf.position() == 0) {
+            this.data = buf.array();
+            this.length = buf.limit();
+        } else {
+            this.data = new char[buf.remaining()];
+            buf.duplicate().get(this.data);
+            this.length = this.data.length;
+        }
+        this.sourceName = sourceName;
+        this.listener = listener;
+        this.source = new Pair<>(this, null);
+    }
+
+    public static OkmTokenSource fromPath(final Path path, final ANTLRErrorListener listener) throws IOException {
+        try (final FileChannel ch = FileChannel.open(path)) {
+            final MappedByteBuffer bytes = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            final CharBuffer chars = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                    .decode(bytes);
+            return new OkmTokenSource(chars, path.toString(), listener);
+        }
+    }
+
+    @Override
+    public Token nextToken() {
+        while (pos < length) {
+            final int start = pos;
+            final int col = start - pairs - lineStart;
+            final char c = data[pos];
+            switch (c) {
+                case '\n':
+                    ++pos;
+                    ++line;
+                    lineStart = pos - pairs;
+                    continue;
+                case ' ':
+                case '\t':
+                case '\r':
+                    ++pos;
+                    continue;
+                case '#':
+                    skipLineComment();
+                    continue;
+                case '<':
+                    if (peek(1) == '#' && skipBlockComment()) {
+                        continue;
+                    }
+                    return peek(1) == '=' ? fixed(OkmParser.LE, "<=", start, col) : fixed(OkmParser.LT, "<", start, col);
+                case '>':
+                    return peek(1) == '=' ? fixed(OkmParser.GE, ">=", start, col) : fixed(OkmParser.GT, ">", start, col);
+                case '=':
+                    return peek(1) == '=' ? fixed(OkmParser.EQL, "==", start, col) : fixed(OkmParser.SET, "=", start, col);
+                case ':':
+                    return peek(1) == '=' ? fixed(OkmParser.INF, ":=", start, col) : fixed(OkmParser.COLON, ":", start, col);
+                case '!':
+                    if (peek(1) == '=') {
+                        return fixed(OkmParser.NEQ, "!=", start, col);
+                    }
+                    // The generated lexer reports both characters and
+                    // resumes after the one that does not fit
+                    ++pos;
+                    if (pos < length) {
+                        advance();
+                    }
+                    reportError(start, col);
+                    if (data[pos - 1] == '\n') {
+                        ++line;
+                        lineStart = pos - pairs;
+                    }
+                    continue;
+                case '.': return fixed(OkmParser.DOT, ".", start, col);
+                case ';': return fixed(OkmParser.SEMI, ";", start, col);
+                case ',': return fixed(OkmParser.COMMA, ",", start, col);
+                case '(': return fixed(OkmParser.LPAREN, "(", start, col);
+                case ')': return fixed(OkmParser.RPAREN, ")", start, col);
+                case '{': return fixed(OkmParser.LBRACKET, "{", start, col);
+                case '}': return fixed(OkmParser.RBRACKET, "}", start, col);
+                case '&': return fixed(OkmParser.AMP, "&", start, col);
+                case '+': return fixed(OkmParser.ADD, "+", start, col);
+                case '-': return fixed(OkmParser.SUB, "-", start, col);
+                case '*': return fixed(OkmParser.MUL, "*", start, col);
+                case '/': return fixed(OkmParser.DIV, "/", start, col);
+                case '%': return fixed(OkmParser.MOD, "%", start, col);
+                case '~': return fixed(OkmParser.TILDA, "~", start, col);
+                default:
+                    if (isIdentStart(c)) {
+                        return lexIdent(start, col);
+                    }
+                    if (c >= '0' && c <= '9') {
+                        return lexNumber(start, col);
+                    }
+                    advance();
+                    reportError(start, col);
+                    continue;
+            }
+        }
+
+        return make(Token.EOF, "<EOF>", pos, pos - 1, pos - pairs - lineStart);
+    }
+
+    private void advance() {
+        // Both halves of a surrogate pair are one code point
+        if (Character.isHighSurrogate(data[pos]) && pos + 1 < length && Character.isLowSurrogate(data[pos + 1])) {
+            ++pairs;
+            pos += 2;
+        } else {
+            ++pos;
+        }
+    }
+
+    private char peek(final int offset) {
+        final int idx = pos + offset;
+        return idx < length ? data[idx] : '\0';
+    }
+
+    private void skipLineComment() {
+        while (pos < length) {
+            final char c = data[pos];
+            if (c == '\r' || c == '\n') {
+                break;
+            }
+            advance();
+        }
+    }
+
+    private boolean skipBlockComment() {
+        // <# ... #>, if it is never closed, it is a < followed by a # comment
+        for (int i = pos + 2; i + 1 < length; ++i) {
+            if (data[i] == '#' && data[i + 1] == '>') {
+                while (pos < i + 2) {
+                    final boolean newline = data[pos] == '\n';
+                    advance();
+                    if (newline) {
+                        ++line;
+                        lineStart = pos - pairs;
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isIdentStart(final char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == '$';
+    }
+
+    private static boolean isIdentPart(final char c) {
+        return isIdentStart(c) || (c >= '0' && c <= '9');
+    }
+
+    private Token lexIdent(final int start, final int col) {
+        int end = start + 1;
+        while (end < length && isIdentPart(data[end])) {
+            ++end;
+        }
+        pos = end;
+
+        final String text = new String(data, start, end - start);
+        final Integer keyword = KEYWORDS.get(text);
+        return make(keyword == null ? OkmParser.IDENT : keyword, text, start, end - 1, col);
+    }
+
+    private Token lexNumber(final int start, final int col) {
+        // ('0' | [1-9][0-9]*) ([bBsSiIlLfFdD]? | '.' [0-9]+ [fFdD]?)
+        int end = start + 1;
+        if (data[start] != '0') {
+            while (end < length && isDigit(data[end])) {
+                ++end;
+            }
+        }
+
+        if (end + 1 < length && data[end] == '.' && isDigit(data[end + 1])) {
+            end += 2;
+            while (end < length && isDigit(data[end])) {
+                ++end;
+            }
+            if (end < length && "fFdD".indexOf(data[end]) >= 0) {
+                ++end;
+            }
+        } else if (end < length && "bBsSiIlLfFdD".indexOf(data[end]) >= 0) {
+            ++end;
+        }
+        pos = end;
+
+        return make(OkmParser.NUMBER, new String(data, start, end - start), start, end - 1, col);
+    }
+
+    private static boolean isDigit(final char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private Token fixed(final int type, final String text, final int start, final int col) {
+        pos = start + text.length();
+        return make(type, text, start, pos - 1, col);
+    }
+
+    private CommonToken make(final int type, final String text, final int start, final int stop, final int col) {
+        // Tokens never contain surrogate pairs, all of them are before start
+        final CommonToken token = new CommonToken(source, type, Token.DEFAULT_CHANNEL, start - pairs, stop - pairs);
+        token.setText(text);
+        token.setLine(line);
+        token.setCharPositionInLine(col);
+        return token;
+    }
+
+    private void reportError(final int start, final int col) {
+        // Same message as the generated lexer
+        final String text = new String(data, start, pos - start)
+                .replace("\n", "\\n").replace("\r", "\\r").replace("\t", "\\t");
+        listener.syntaxError(null, null, line, col, "token recognition error at: '" + text + "'", null);
+    }
+
+    @Override
+    public int getLine() {
+        return line;
+    }
+
+    @Override
+    public int getCharPositionInLine() {
+        return pos - pairs - lineStart;
+    }
+
+    @Override
+    public CharStream getInputStream() {
+        return null;
+    }
+
+    @Override
+    public String getSourceName() {
+        return sourceName;
+    }
+
+    @Override
+    public void setTokenFactory(final TokenFactory<?> factory) {
+        this.factory = factory;
+    }
+
+    @Override
+    public TokenFactory<?> getTokenFactory() {
+        return factory;
+    }
+}
@@ -0,0 +1,121 @@
+package com.ymcmp.okm;
+
+import java.io.IOException;
+
+import java.nio.file.Path;
+import java.nio.file.Files;
+
+import java.nio.file.attribute.FileTime;
+
+import java.util.Map;
+import java.util.HashMap;
+
+import org.antlr.v4.runtime.Recognizer;
+import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ANTLRErrorListener;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+
+import org.antlr.v4.runtime.atn.PredictionMode;
+
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+
+import com.ymcmp.okm.grammar.OkmParser;
+import com.ymcmp.okm.grammar.OkmParser.ProgramContext;
+
+// Keeps parse trees of source files around between compilations. The
+// visitor never modifies the trees, so they can be walked again as long
+// as the file did not change.
+public final class ParseCache {
+
+    private static final class Entry {
+
+        public final FileTime modified;
+        public final long size;
+        public final ProgramContext tree;
+
+        public Entry(FileTime modified, long size, ProgramContext tree) {
+            this.modified = modified;
+            this.size = size;
+            this.tree = tree;
+        }
+    }
+
+    // Forwards errors to another listener and counts them
+    private static final class CountingErrorListener extends BaseErrorListener {
+
+        private final ANTLRErrorListener listener;
+        public int errors = 0;
+
+        public CountingErrorListener(ANTLRErrorListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void syntaxError(final Recognizer<?, ?> recognizer, final Object offendingSymbol, final int line, final int charPositionInLine, final String msg, final RecognitionException e) {
+            ++errors;
+            listener.syntaxError(recognizer, offendingSymbol, line, charPositionInLine, msg, e);
+        }
+    }
+
+    // Parsers are reused by each thread, the DFA they build up is shared by
+    // all instances anyway
+    private static final ThreadLocal<OkmParser> PARSER = ThreadLocal.withInitial(() -> new OkmParser(null));
+
+    private final Map<Path, Entry> entries = new HashMap<>();
+
+    // Syntax and token recognition errors are reported to listener
+    public static ProgramContext parse(final Path path, final ANTLRErrorListener listener) throws IOException {
+        final CommonTokenStream tokens = new CommonTokenStream(OkmTokenSource.fromPath(path, listener));
+        final OkmParser parser = PARSER.get();
+
+        // SLL is much faster and is enough for most inputs. It gives up on
+        // the first syntax error, in which case the full LL algorithm is
+        // used instead (it also reports the errors like before)
+        parser.setTokenStream(tokens);
+        parser.removeErrorListeners();
+        parser.setErrorHandler(new BailErrorStrategy());
+        parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        try {
+            return parser.program();
+        } catch (ParseCancellationException ex) {
+            tokens.seek(0);
+            parser.reset();
+            parser.addErrorListener(listener);
+            parser.setErrorHandler(new DefaultErrorStrategy());
+            parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+            return parser.program();
+        } finally {
+            // Do not keep the last file alive through the reused instances
+            parser.setTokenStream(null);
+        }
+    }
+
+    // path must be absolute and normalized
+    public synchronized ProgramContext get(final Path path, final ANTLRErrorListener listener) throws IOException {
+        final FileTime modified = Files.getLastModifiedTime(path);
+        final long size = Files.size(path);
+        final Entry entry = entries.get(path);
+        if (entry != null && entry.size == size && entry.modified.equals(modified)) {
+            Trace.event(Trace.Category.PARSE, "Reusing parse tree of ", path);
+            return entry.tree;
+        }
+
+        // Trees recovered from errors are not kept, reusing them would hide
+        // the errors from the next request
+        final CountingErrorListener counter = new CountingErrorListener(listener);
+        final ProgramContext tree = parse(path, counter);
+        if (counter.errors == 0) {
+            entries.put(path, new Entry(modified, size, tree));
+        } else {
+            entries.remove(path);
+        }
+        return tree;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+}
@@ -0,0 +1,174 @@
+package com.ymcmp.okm;
+
+import java.io.Writer;
+import java.io.IOException;
+
+import java.nio.file.Path;
+
+import java.util.Map;
+import java.util.List;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.ymcmp.okm.tac.Register;
+
+import com.ymcmp.okm.converter.Converter;
+
+// Runs the front end, the optimizer and the backend on separate threads.
+// Functions are passed along through bounded queues as soon as they are
+// lowered, so only a few of them are held in memory at any time.
+final class Pipeline {
+
+    private static final class Job {
+
+        // A job without a name marks the end of the program
+        public static final Job END = new Job(null, null);
+
+        public final String name;
+        public final FuncBlock func;
+
+        public Job(String name, FuncBlock func) {
+            this.name = name;
+            this.func = func;
+        }
+    }
+
+    private final int depth;
+    private final Converter converter;
+    private final Writer out;
+    private final Map<String, FuncBlock> collected;
+
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    // converter and out can be null if nothing is emitted, functions are
+    // only collected (after optimization) if collected is not null
+    public Pipeline(int depth, Converter converter, Writer out, Map<String, FuncBlock> collected) {
+        this.depth = depth;
+        this.converter = converter;
+        this.out = out;
+        this.collected = collected;
+    }
+
+    public void run(final LocalVisitor visitor, final List<Path> inputs) throws IOException {
+        final BlockingQueue<Job> lowered = new ArrayBlockingQueue<>(depth);
+        final BlockingQueue<Job> optimized = new ArrayBlockingQueue<>(depth);
+
+        final Thread optimizer = new Thread(() -> {
+            // Same reason as App: never clash with front end temporaries
+            Register.setAdditionalTemporaryPrefix("P");
+            drain(lowered, job -> {
+                App.optimize(job.name, job.func);
+                put(optimized, job);
+            });
+            put(optimized, Job.END);
+        }, "okm-optimizer");
+
+        final Thread backend = new Thread(() -> {
+            drain(optimized, job -> {
+                if (converter != null) {
+                    converter.convert(job.name, job.func, out);
+                }
+                if (collected != null) {
+                    collected.put(job.name, job.func);
+                }
+            });
+            if (converter != null && failure.get() == null) {
+                try {
+                    converter.finish(out);
+                } catch (IOException ex) {
+                    fail(ex);
+                }
+            }
+        }, "okm-backend");
+
+        optimizer.start();
+        backend.start();
+
+        visitor.setFunctionSink((name, func) -> {
+            if (failure.get() != null) {
+                // No point lowering the rest, the actual failure is
+                // thrown once every stage is done
+                throw new RuntimeException("Pipeline stopped");
+            }
+            put(lowered, new Job(name, func));
+        });
+        try {
+            visitor.compile(inputs);
+        } catch (RuntimeException | Error ex) {
+            fail(ex);
+        } finally {
+            visitor.setFunctionSink(null);
+            put(lowered, Job.END);
+        }
+
+        try {
+            optimizer.join();
+            backend.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            fail(ex);
+        }
+        rethrow();
+    }
+
+    private interface Stage {
+
+        public void process(Job job) throws IOException;
+    }
+
+    private void drain(final BlockingQueue<Job> queue, final Stage stage) {
+        while (true) {
+            final Job job;
+            try {
+                job = queue.take();
+            } catch (InterruptedException ex) {
+                fail(ex);
+                return;
+            }
+            if (job == Job.END) {
+                return;
+            }
+            if (failure.get() != null) {
+                // Keep taking jobs so the stages before do not block
+                continue;
+            }
+            try {
+                stage.process(job);
+            } catch (IOException | RuntimeException | Error ex) {
+                fail(ex);
+            }
+        }
+    }
+
+    private void put(final BlockingQueue<Job> queue, final Job job) {
+        try {
+            queue.put(job);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Pipeline interrupted");
+        }
+    }
+
+    private void fail(final Throwable ex) {
+        failure.compareAndSet(null, ex);
+    }
+
+    private void rethrow() throws IOException {
+        final Throwable ex = failure.get();
+        if (ex == null) {
+            return;
+        }
+        if (ex instanceof IOException) {
+            throw (IOException) ex;
+        }
+        if (ex instanceof RuntimeException) {
+            throw (RuntimeException) ex;
+        }
+        if (ex instanceof Error) {
+            throw (Error) ex;
+        }
+        throw new RuntimeException(ex.getMessage(), ex);
+    }
+}
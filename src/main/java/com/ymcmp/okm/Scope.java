@@ -27,6 +27,10 @@ public final class Scope implements Serializable {
         this.environment = env;
     }
 
+    public Module getEnvironment() {
+        return environment;
+    }
+
     public void shift() {
         // HashMap is added to the front of the deque
         this.locals.push(new LinkedHashMap<>());
@@ -0,0 +1,62 @@
+package com.ymcmp.okm;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+
+import java.nio.file.Path;
+import java.nio.file.Files;
+
+import java.util.List;
+import java.util.ArrayList;
+
+// Keeps lowered functions on disk instead of in memory. Each function is
+// written to its own file in the order it was lowered, and is deleted
+// again when it is read back.
+final class SpillStore {
+
+    private final Path dir;
+    private final List<String> names = new ArrayList<>();
+
+    public SpillStore(final Path parent) throws IOException {
+        Files.createDirectories(parent);
+        this.dir = Files.createTempDirectory(parent, "okm-spill");
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    public String getName(final int index) {
+        return names.get(index);
+    }
+
+    public void put(final String name, final FuncBlock func) throws IOException {
+        // Function names are not valid file names, use the index instead
+        final Path file = dir.resolve(names.size() + ".fb");
+        try (final ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            oos.writeObject(func);
+        }
+        names.add(name);
+    }
+
+    public FuncBlock take(final int index) throws IOException {
+        final Path file = dir.resolve(index + ".fb");
+        try (final ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            return (FuncBlock) ois.readObject();
+        } catch (ClassNotFoundException ex) {
+            throw new IOException("Corrupted spill file " + file, ex);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    public void close() throws IOException {
+        for (int i = 0; i < names.size(); ++i) {
+            Files.deleteIfExists(dir.resolve(i + ".fb"));
+        }
+        Files.deleteIfExists(dir);
+    }
+}
@@ -0,0 +1,23 @@
+package com.ymcmp.okm;
+
+import java.io.PrintStream;
+
+import org.antlr.v4.runtime.Recognizer;
+import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.RecognitionException;
+
+// Same format as ANTLR's ConsoleErrorListener, but prints to the given
+// stream instead of System.err (the daemon has one per request)
+public final class StreamErrorListener extends BaseErrorListener {
+
+    private final PrintStream err;
+
+    public StreamErrorListener(final PrintStream err) {
+        this.err = err;
+    }
+
+    @Override
+    public void syntaxError(final Recognizer<?, ?> recognizer, final Object offendingSymbol, final int line, final int charPositionInLine, final String msg, final RecognitionException e) {
+        err.println("line " + line + ":" + charPositionInLine + " " + msg);
+    }
+}
@@ -0,0 +1,96 @@
+package com.ymcmp.okm;
+
+import java.io.PrintStream;
+
+import java.nio.file.Path;
+
+import java.util.Set;
+
+import java.util.function.Supplier;
+
+// Compiler tracing. Messages are passed in pieces and only concatenated
+// when their category is traced, so a disabled trace costs a field load.
+// Setting ENABLED to false removes tracing from the compiler altogether.
+public final class Trace {
+
+    public static final boolean ENABLED = true;
+
+    public enum Category {
+        PARSE, LOWER, TYPES, PASSES;
+    }
+
+    // Where traced events go, the stderr of the invocation
+    private static volatile PrintStream out = System.err;
+
+    // Bit i is set if the category with ordinal i is traced
+    private static volatile int mask = 0;
+
+    // If set, front end events are only traced while this file is processed
+    private static volatile Path moduleFilter;
+    private static volatile boolean inFilteredModule = true;
+
+    private Trace() {
+    }
+
+    public static void configure(final Set<Category> categories, final Path module, final PrintStream stream) {
+        int bits = 0;
+        for (final Category c : categories) {
+            bits |= 1 << c.ordinal();
+        }
+        mask = bits;
+        moduleFilter = module;
+        inFilteredModule = module == null;
+        out = stream;
+    }
+
+    // Called by the front end whenever it switches files
+    public static void enterFile(final Path file) {
+        final Path filter = moduleFilter;
+        inFilteredModule = filter == null || filter.equals(file);
+    }
+
+    public static boolean isTraced(final Category c) {
+        return ENABLED && (mask & (1 << c.ordinal())) != 0
+                && (c == Category.PASSES || inFilteredModule);
+    }
+
+    public static void event(final Category c, final String msg) {
+        if (isTraced(c)) {
+            log(c, msg);
+        }
+    }
+
+    public static void event(final Category c, final String a, final Object b) {
+        if (isTraced(c)) {
+            log(c, a + b);
+        }
+    }
+
+    public static void event(final Category c, final String a, final Object b, final String d) {
+        if (isTraced(c)) {
+            log(c, a + b + d);
+        }
+    }
+
+    public static void event(final Category c, final String a, final Object b, final String d, final Object e) {
+        if (isTraced(c)) {
+            log(c, a + b + d + e);
+        }
+    }
+
+    public static void event(final Category c, final String a, final Object b, final String d, final Object e, final String f, final Object g) {
+        if (isTraced(c)) {
+            log(c, a + b + d + e + f + g);
+        }
+    }
+
+    public static void event(final Category c, final Supplier<String> msg) {
+        if (isTraced(c)) {
+            log(c, msg.get());
+        }
+    }
+
+    private static void log(final Category c, final String msg) {
+        out.println("[" + c.name().toLowerCase() + "] " + msg);
+    }
+}
@@ -1,7 +1,11 @@
 package com.ymcmp.okm.converter;
 
+import java.io.Writer;
+import java.io.IOException;
+
 import java.util.Map;
 import java.util.List;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Arrays;
@@ -41,6 +45,10 @@ public class AMD64Converter implements Converter {
 
     private final HashSet<String> globalNames = new HashSet<>();
 
+    // Streaming mode only: names whose %define has already been written
+    private final HashSet<String> writtenNames = new HashSet<>();
+    private boolean streamed = false;
+
     private final List<String> funcPrologue = new ArrayList<>();
     private final List<String> funcEpilogue = new ArrayList<>();
     private final HashMap<Value, String> dataMapping = new HashMap<>();
@@ -53,21 +61,65 @@ public class AMD64Converter implements Converter {
         sectText.clear();
 
         globalNames.clear();
+        writtenNames.clear();
+        streamed = false;
     }
 
     @Override
     public String getResult() {
-        final String namedef = globalNames.stream()
+        final String text = sectText.stream()
+                .collect(Collectors.joining("\n", SECTION_TEXT_HEADER, ""));
+        return formatNameDefs(globalNames) + '\n' + formatData() + '\n' + formatBss() + '\n' + text;
+    }
+
+    @Override
+    public void convert(final String name, final FuncBlock body, final Writer out) throws IOException {
+        // The data and bss sections are only complete once every function
+        // is converted, so in streaming mode the text section goes first
+        if (!streamed) {
+            out.write(SECTION_TEXT_HEADER);
+            streamed = true;
+        } else {
+            out.write('\n');
+        }
+
+        final String text = convertFunction(name, body.code);
+
+        // %define only applies to the lines after it, write the new ones
+        // before the function that needs them
+        final ArrayList<String> names = new ArrayList<>();
+        for (final String global : globalNames) {
+            if (writtenNames.add(global)) names.add(global);
+        }
+        if (!names.isEmpty()) {
+            out.write(formatNameDefs(names));
+        }
+        out.write(text);
+    }
+
+    @Override
+    public void finish(final Writer out) throws IOException {
+        out.write('\n');
+        out.write(formatData());
+        out.write('\n');
+        out.write(formatBss());
+    }
+
+    private static String formatNameDefs(final Collection<String> names) {
+        return names.stream()
                 .map(e -> "  %define " + e + " " + e.substring(1))
                 .collect(Collectors.joining("\n", "%ifidn __OUTPUT_FORMAT__, elf64\n", "\n%endif\n"));
-        final String data = sectData.values().stream()
+    }
+
+    private String formatData() {
+        return sectData.values().stream()
                 .map(DataValue::output)
                 .collect(Collectors.joining("\n", SECTION_DATA_HEADER, "\n"));
-        final String bss = sectBss.values().stream()
+    }
+
+    private String formatBss() {
+        return sectBss.values().stream()
                 .collect(Collectors.joining("\n", SECTION_BSS_HEADER, "\n"));
-        final String text = sectText.stream()
-                .collect(Collectors.joining("\n", SECTION_TEXT_HEADER, ""));
-        return namedef + '\n' + data + '\n' + bss + '\n' + text;
     }
 
     private static String mangleName(final String name) {
@@ -77,10 +129,10 @@ public class AMD64Converter implements Converter {
 
     @Override
     public void convert(final String name, final FuncBlock body) {
-        convert(name, body.code);
+        sectText.add(convertFunction(name, body.code));
     }
 
-    private void convert(final String name, final List<Statement> body) {
+    private String convertFunction(final String name, final List<Statement> body) {
         // Reset necessary fields
         funcPrologue.clear();
         funcEpilogue.clear();
@@ -381,7 +433,7 @@ public class AMD64Converter implements Converter {
                     final StringBuilder structHead = new StringBuilder(getNumber(stmt.lhs));
                     structHead
                             .insert(structHead.length() - 1, " + ")
-                            .insert(structHead.length() - 1, Long.parseLong(((Fixnum) stmt.rhs).value) / 8);
+                            .insert(structHead.length() - 1, ((Fixnum) stmt.rhs).longValue() / 8);
 
                     code.add("    lea rax, " + structHead);
                     code.add("    mov " + getOrAllocSite(8, stmt.dst, code) + ", rax");
@@ -607,7 +659,7 @@ public class AMD64Converter implements Converter {
                     final StringBuilder structHead = new StringBuilder(getNumber(stmt.lhs));
                     structHead
                             .insert(structHead.length() - 1, " + ")
-                            .insert(structHead.length() - 1, Long.parseLong(((Fixnum) stmt.rhs).value) / 8);
+                            .insert(structHead.length() - 1, ((Fixnum) stmt.rhs).longValue() / 8);
 
                     code.add("    mov " + tmp + ", " + getNumber(stmt.dst));
                     code.add("    mov " + structHead + ", " + tmp);
@@ -622,7 +674,7 @@ public class AMD64Converter implements Converter {
 
                     code.add("    mov " + tmp + ", " + getNumber(stmt.dst));
                     code.add("    mov rdi, " + getNumber(stmt.lhs));
-                    code.add("    mov [rdi + " + (Long.parseLong(((Fixnum) stmt.rhs).value) / 8) + "], " + tmp);
+                    code.add("    mov [rdi + " + (((Fixnum) stmt.rhs).longValue() / 8) + "], " + tmp);
                     break;
                 }
                 case GET_ATTR: {
@@ -634,7 +686,7 @@ public class AMD64Converter implements Converter {
                     final StringBuilder structHead = new StringBuilder(getNumber(stmt.lhs));
                     structHead
                             .insert(structHead.length() - 1, " + ")
-                            .insert(structHead.length() - 1, Long.parseLong(((Fixnum) stmt.rhs).value) / 8);
+                            .insert(structHead.length() - 1, ((Fixnum) stmt.rhs).longValue() / 8);
 
                     code.add("    mov " + tmp + ", " + structHead);
                     code.add("    mov " + getOrAllocSite(bs, stmt.dst, code) + ", " + tmp);
@@ -648,7 +700,7 @@ public class AMD64Converter implements Converter {
                     final String tmp = getIntRegister(bs);
 
                     code.add("    mov rax, " + getNumber(stmt.lhs));
-                    code.add("    mov " + tmp + ", [rax + " + (Long.parseLong(((Fixnum) stmt.rhs).value) / 8) + "]");
+                    code.add("    mov " + tmp + ", [rax + " + (((Fixnum) stmt.rhs).longValue() / 8) + "]");
                     code.add("    mov " + getOrAllocSite(bs, stmt.dst, code) + ", " + tmp);
                     break;
                 }
@@ -721,8 +773,8 @@ public class AMD64Converter implements Converter {
             }
         }
 
-        sectText.add(Stream.concat(funcPrologue.stream(), code.stream())
-                .collect(Collectors.joining("\n", "", "\n")));
+        return Stream.concat(funcPrologue.stream(), code.stream())
+                .collect(Collectors.joining("\n", "", "\n"));
     }
 
     private static void generateFuncEpilogue(final List<String> code) {
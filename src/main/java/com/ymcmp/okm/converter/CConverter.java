@@ -0,0 +1,948 @@
+package com.ymcmp.okm.converter;
+
+import java.util.Map;
+import java.util.List;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.TreeSet;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import com.ymcmp.okm.FuncBlock;
+
+import com.ymcmp.okm.tac.Label;
+import com.ymcmp.okm.tac.Value;
+import com.ymcmp.okm.tac.Fixnum;
+import com.ymcmp.okm.tac.Register;
+import com.ymcmp.okm.tac.Operation;
+import com.ymcmp.okm.tac.Statement;
+
+import com.ymcmp.okm.type.Type;
+import com.ymcmp.okm.type.FuncType;
+import com.ymcmp.okm.type.UnaryType;
+
+// Converts IR to C99 which is then compiled by a C compiler (cc -O2) and
+// linked against the native functions (sample/std/*.c).
+//
+// Registers do not have types, so each one becomes a local of the C type
+// that fits how it is used: integers and floats by their size, structs
+// and classes as blocks of bytes of their size. Attributes are at the
+// offsets the IR already has, so they are read and written with memcpy
+// (which the C compiler turns into plain loads and stores). Pointers are
+// 64 bits like in the IR.
+public class CConverter implements Converter {
+
+    private static final String HEADER =
+            "#include <math.h>\n" +
+            "#include <stdint.h>\n" +
+            "#include <string.h>\n";
+
+    private static final UnaryType UNIT = UnaryType.getType("unit");
+    private static final UnaryType BOOL = UnaryType.getType("bool");
+
+    private static final class Slot {
+
+        public boolean floatPoint;
+        public int size;
+
+        public Slot(boolean floatPoint, int size) {
+            this.floatPoint = floatPoint;
+            this.size = size;
+        }
+
+        public boolean isScalar() {
+            return floatPoint || size == 1 || size == 2 || size == 4 || size == 8;
+        }
+    }
+
+    // Where a register that was read out of a struct came from, see PUT_ATTR
+    private static final class View {
+
+        public final String addr;
+        public final int size;
+        public final Value parent;
+
+        public View(String addr, int size, Value parent) {
+            this.addr = addr;
+            this.size = size;
+            this.parent = parent;
+        }
+    }
+
+    private final Map<String, FuncBlock> funcs = new LinkedHashMap<>();
+
+    // Everything below is only used while building the result
+    private final Map<String, Map<Value, Slot>> funcLocals = new HashMap<>();
+    private final Map<String, Slot> globals = new LinkedHashMap<>();
+    private final TreeSet<Integer> blocks = new TreeSet<>();
+    private final Map<String, String> natives = new LinkedHashMap<>();
+    private boolean changed;
+
+    private Map<Value, Slot> locals;
+    private List<String> decls;
+    private int extraLocals;
+
+    @Override
+    public void convert(final String name, final FuncBlock body) {
+        // Calls need the signature of the callee and globals need to know
+        // how every function uses them, so nothing is done until the end
+        funcs.put(name, body);
+    }
+
+    @Override
+    public void reset() {
+        funcs.clear();
+    }
+
+    @Override
+    public String getResult() {
+        funcLocals.clear();
+        globals.clear();
+        blocks.clear();
+        natives.clear();
+
+        // Globals are shared between functions and STORE_VAR links the
+        // registers together, keep going until no slot grows anymore
+        do {
+            changed = false;
+            for (final Map.Entry<String, FuncBlock> entry : funcs.entrySet()) {
+                locals = funcLocals.computeIfAbsent(entry.getKey(), k -> new LinkedHashMap<>());
+                inferSlots(entry.getValue());
+            }
+        } while (changed);
+
+        final StringBuilder bodies = new StringBuilder();
+        for (final Map.Entry<String, FuncBlock> entry : funcs.entrySet()) {
+            locals = funcLocals.get(entry.getKey());
+            bodies.append('\n').append(convertFunction(entry.getKey(), entry.getValue()));
+        }
+
+        final StringBuilder protos = new StringBuilder();
+        for (final Map.Entry<String, FuncBlock> entry : funcs.entrySet()) {
+            if (!entry.getKey().equals("@init")) {
+                protos.append("static ").append(prototype(entry.getKey(), entry.getValue().signature)).append(";\n");
+            }
+        }
+
+        final StringBuilder vars = new StringBuilder();
+        for (final Map.Entry<String, Slot> entry : globals.entrySet()) {
+            vars.append("static ").append(ctype(entry.getValue())).append(' ').append(mangleGlobal(entry.getKey())).append(";\n");
+        }
+
+        final StringBuilder sb = new StringBuilder(HEADER).append('\n');
+        for (final int size : blocks) {
+            sb.append("typedef struct { unsigned char b[").append(size).append("]; } okm_b").append(size).append(";\n");
+        }
+        if (!blocks.isEmpty()) sb.append('\n');
+        for (final String decl : natives.values()) {
+            sb.append("extern ").append(decl).append(";\n");
+        }
+        if (!natives.isEmpty()) sb.append('\n');
+        sb.append(protos);
+        if (vars.length() > 0) sb.append('\n').append(vars);
+        return sb.append(bodies).toString();
+    }
+
+    private static boolean isFunction(final String name) {
+        return name.startsWith("@") && name.endsWith(":");
+    }
+
+    private boolean isVariable(final Value v) {
+        return v instanceof Register && !isFunction(v.toString());
+    }
+
+    private static String sanitize(final String str) {
+        final StringBuilder sb = new StringBuilder(str.length());
+        for (int i = 0; i < str.length(); ++i) {
+            final char c = str.charAt(i);
+            sb.append(Character.isLetterOrDigit(c) && c < 128 ? c : '_');
+        }
+        return sb.toString();
+    }
+
+    private static String mangleFunction(final String name) {
+        // Same scheme as AMD64Converter, without the reserved leading _
+        final String subst = name.substring(1);
+        return "F" + (subst.indexOf(':') + 1) + "_" + sanitize(subst);
+    }
+
+    private static String mangleGlobal(final String name) {
+        return "G_" + sanitize(name.substring(1));
+    }
+
+    private static String mangleLocal(final String name) {
+        if (name.startsWith("%T")) return "t_" + sanitize(name.substring(2));
+        if (name.startsWith("$"))  return "v_" + sanitize(name.substring(1));
+        return "r_" + sanitize(name);
+    }
+
+    private String ctype(final Slot slot) {
+        if (slot.floatPoint) {
+            return slot.size > 4 ? "double" : "float";
+        }
+        switch (slot.size) {
+            case 1: return "int8_t";
+            case 2: return "int16_t";
+            case 4: return "int32_t";
+            case 8: return "int64_t";
+            default:
+                blocks.add(slot.size);
+                return "okm_b" + slot.size;
+        }
+    }
+
+    private static Slot slotOf(final Type type) {
+        return new Slot(type.isFloatPoint(), type.getSize() / 8);
+    }
+
+    private String returnType(final FuncType sig) {
+        return sig.ret == UNIT ? "void" : ctype(slotOf(sig.ret));
+    }
+
+    private String prototype(final String name, final FuncType sig) {
+        final StringBuilder sb = new StringBuilder(returnType(sig))
+                .append(' ').append(mangleFunction(name)).append('(');
+        for (int i = 0; i < sig.params.length; ++i) {
+            if (i > 0) sb.append(", ");
+            sb.append(ctype(slotOf(sig.params[i]))).append(" a").append(i);
+        }
+        if (sig.params.length == 0) sb.append("void");
+        return sb.append(')').toString();
+    }
+
+    private String nativePrototype(final String name, final FuncType sig) {
+        // The C side has real bools, everything else is the same
+        final StringBuilder sb = new StringBuilder(returnType(sig)).append(' ').append(name).append('(');
+        for (int i = 0; i < sig.params.length; ++i) {
+            if (i > 0) sb.append(", ");
+            sb.append(sig.params[i] == BOOL ? "_Bool" : ctype(slotOf(sig.params[i])));
+        }
+        if (sig.params.length == 0) sb.append("void");
+        return sb.append(')').toString();
+    }
+
+    // Slot inference
+
+    private Slot lookup(final Value v) {
+        final String name = v.toString();
+        if (name.startsWith("@")) {
+            return globals.get(name);
+        }
+        return locals.get(v);
+    }
+
+    private void note(final Value v, final boolean floatPoint, final int size) {
+        if (!isVariable(v)) {
+            return;
+        }
+
+        Slot slot = lookup(v);
+        if (slot == null) {
+            slot = new Slot(floatPoint, size);
+            if (v.toString().startsWith("@")) {
+                globals.put(v.toString(), slot);
+            } else {
+                locals.put(v, slot);
+            }
+            changed = true;
+            return;
+        }
+        if (floatPoint && !slot.floatPoint) {
+            slot.floatPoint = true;
+            changed = true;
+        }
+        if (size > slot.size) {
+            slot.size = size;
+            changed = true;
+        }
+    }
+
+    private void link(final Value a, final Value b) {
+        if (isVariable(a) && isVariable(b)) {
+            final Slot sa = lookup(a);
+            final Slot sb = lookup(b);
+            note(a, sb.floatPoint, sb.size);
+            note(b, sa.floatPoint, sa.size);
+        }
+    }
+
+    private void inferSlots(final FuncBlock body) {
+        final FuncType sig = body.signature;
+        int popIdx = 0;
+        for (final Statement stmt : body.code) {
+            final int bs = stmt.getDataSize() / 8;
+            switch (stmt.op) {
+                case CONV_BYTE_INT:     note(stmt.dst, false, 4); note(stmt.lhs, false, 1); break;
+                case CONV_SHORT_INT:    note(stmt.dst, false, 4); note(stmt.lhs, false, 2); break;
+                case CONV_LONG_INT:     note(stmt.dst, false, 4); note(stmt.lhs, false, 8); break;
+                case CONV_INT_BYTE:     note(stmt.dst, false, 1); note(stmt.lhs, false, 4); break;
+                case CONV_INT_SHORT:    note(stmt.dst, false, 2); note(stmt.lhs, false, 4); break;
+                case CONV_INT_LONG:     note(stmt.dst, false, 8); note(stmt.lhs, false, 4); break;
+                case CONV_INT_FLOAT:    note(stmt.dst, true, 4);  note(stmt.lhs, false, 4); break;
+                case CONV_LONG_FLOAT:   note(stmt.dst, true, 4);  note(stmt.lhs, false, 8); break;
+                case CONV_FLOAT_INT:    note(stmt.dst, false, 4); note(stmt.lhs, true, 4);  break;
+                case CONV_FLOAT_LONG:   note(stmt.dst, false, 8); note(stmt.lhs, true, 4);  break;
+                case CONV_INT_DOUBLE:   note(stmt.dst, true, 8);  note(stmt.lhs, false, 4); break;
+                case CONV_LONG_DOUBLE:  note(stmt.dst, true, 8);  note(stmt.lhs, false, 8); break;
+                case CONV_FLOAT_DOUBLE: note(stmt.dst, true, 8);  note(stmt.lhs, true, 4);  break;
+                case CONV_DOUBLE_FLOAT: note(stmt.dst, true, 4);  note(stmt.lhs, true, 8);  break;
+                case CONV_DOUBLE_LONG:  note(stmt.dst, false, 8); note(stmt.lhs, true, 8);  break;
+                case CONV_DOUBLE_INT:   note(stmt.dst, false, 4); note(stmt.lhs, true, 8);  break;
+                case INT_LT:
+                case INT_GT:
+                case INT_LE:
+                case INT_GE:
+                case INT_EQ:
+                case INT_NE:
+                    note(stmt.dst, false, 1);
+                    note(stmt.lhs, false, 4);
+                    note(stmt.rhs, false, 4);
+                    break;
+                case INT_CMP:
+                case LONG_CMP:
+                case FLOAT_CMP:
+                case DOUBLE_CMP: {
+                    final boolean fp = stmt.op == Operation.FLOAT_CMP || stmt.op == Operation.DOUBLE_CMP;
+                    final int size = stmt.op == Operation.INT_CMP || stmt.op == Operation.FLOAT_CMP ? 4 : 8;
+                    note(stmt.dst, false, 4);
+                    note(stmt.lhs, fp, size);
+                    note(stmt.rhs, fp, size);
+                    break;
+                }
+                case INT_NEG:
+                case INT_CPL:
+                case INT_ADD:
+                case INT_SUB:
+                case INT_MUL:
+                case INT_DIV:
+                case INT_MOD:
+                    noteAll(stmt, false, 4);
+                    break;
+                case LONG_NEG:
+                case LONG_CPL:
+                case LONG_ADD:
+                case LONG_SUB:
+                case LONG_MUL:
+                case LONG_DIV:
+                case LONG_MOD:
+                    noteAll(stmt, false, 8);
+                    break;
+                case FLOAT_NEG:
+                case FLOAT_ADD:
+                case FLOAT_SUB:
+                case FLOAT_MUL:
+                case FLOAT_DIV:
+                case FLOAT_MOD:
+                    noteAll(stmt, true, 4);
+                    break;
+                case DOUBLE_NEG:
+                case DOUBLE_ADD:
+                case DOUBLE_SUB:
+                case DOUBLE_MUL:
+                case DOUBLE_DIV:
+                case DOUBLE_MOD:
+                    noteAll(stmt, true, 8);
+                    break;
+                case LOAD_TRUE:
+                case LOAD_FALSE:
+                    note(stmt.dst, false, 1);
+                    break;
+                case LOAD_NUMERAL: {
+                    final Fixnum num = (Fixnum) stmt.lhs;
+                    note(stmt.dst, !num.isInt, bs > 0 ? bs : num.size / 8);
+                    break;
+                }
+                case LOAD_FUNC:
+                case REFER_VAR:
+                case REFER_ATTR:
+                    note(stmt.dst, false, 8);
+                    break;
+                case STORE_VAR:
+                    note(stmt.dst, false, bs);
+                    note(stmt.lhs, false, bs);
+                    link(stmt.dst, stmt.lhs);
+                    break;
+                case POINTER_GET:
+                case DEREF_GET_ATTR:
+                    note(stmt.dst, false, bs);
+                    note(stmt.lhs, false, 8);
+                    break;
+                case POINTER_PUT:
+                    note(stmt.dst, false, 8);
+                    note(stmt.lhs, false, bs);
+                    break;
+                case DEREF_PUT_ATTR:
+                    note(stmt.dst, false, bs);
+                    note(stmt.lhs, false, 8);
+                    break;
+                case GET_ATTR:
+                    note(stmt.dst, false, bs);
+                    note(stmt.lhs, false, offsetOf(stmt) + bs);
+                    break;
+                case PUT_ATTR:
+                    note(stmt.dst, false, bs);
+                    note(stmt.lhs, false, offsetOf(stmt) + bs);
+                    break;
+                case ALLOC_LOCAL:
+                    note(stmt.dst, false, bs);
+                    break;
+                case ALLOC_GLOBAL:
+                    note(stmt.dst, false, offsetOf(stmt) + bs);
+                    note(stmt.lhs, false, bs);
+                    break;
+                case RETURN_INT:
+                    note(stmt.dst, false, bs);
+                    break;
+                case RETURN_FLOAT:
+                    note(stmt.dst, true, bs);
+                    break;
+                case JUMP_INT_LT:
+                case JUMP_INT_GT:
+                case JUMP_INT_LE:
+                case JUMP_INT_GE:
+                case JUMP_INT_EQ:
+                case JUMP_INT_NE:
+                    note(stmt.lhs, false, 4);
+                    note(stmt.rhs, false, 4);
+                    break;
+                case JUMP_IF_TRUE:
+                case JUMP_IF_FALSE:
+                    note(stmt.lhs, false, 1);
+                    break;
+                case POP_PARAM_INT:
+                case POP_PARAM_FLOAT:
+                    if (stmt.dst != null && popIdx < sig.params.length) {
+                        final Slot param = slotOf(sig.params[popIdx]);
+                        note(stmt.dst, param.floatPoint || stmt.op == Operation.POP_PARAM_FLOAT, param.size);
+                    }
+                    ++popIdx;
+                    break;
+                case PUSH_PARAM_INT:
+                    note(stmt.dst, false, bs);
+                    break;
+                case PUSH_PARAM_FLOAT:
+                    note(stmt.dst, true, bs);
+                    break;
+                case CALL_INT:
+                case CALL_FLOAT:
+                    note(stmt.dst, stmt.op == Operation.CALL_FLOAT, bs);
+                    note(stmt.lhs, false, 8);
+                    break;
+                case CALL_UNIT:
+                case TAILCALL:
+                    note(stmt.dst, false, 8);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void noteAll(final Statement stmt, final boolean floatPoint, final int size) {
+        note(stmt.dst, floatPoint, size);
+        note(stmt.lhs, floatPoint, size);
+        if (stmt.rhs != null) note(stmt.rhs, floatPoint, size);
+    }
+
+    private static int offsetOf(final Statement stmt) {
+        return (int) (((Fixnum) stmt.rhs).longValue() / 8);
+    }
+
+    // Expressions
+
+    private Slot slotOf(final Value v) {
+        if (v instanceof Fixnum) {
+            final Fixnum num = (Fixnum) v;
+            return new Slot(!num.isInt, num.size / 8);
+        }
+        if (!isVariable(v)) {
+            return new Slot(false, 8);
+        }
+        final Slot slot = lookup(v);
+        return slot != null ? slot : new Slot(false, 4);
+    }
+
+    private static String literal(final Fixnum num) {
+        if (num.isInt) {
+            final long value = num.longValue();
+            if (num.size > Integer.SIZE) {
+                if (value == Long.MIN_VALUE) return "INT64_MIN";
+                return value < 0 ? "(INT64_C(" + value + "))" : "INT64_C(" + value + ")";
+            }
+            if (value == Integer.MIN_VALUE) return "INT32_MIN";
+            return value < 0 ? "(" + value + ")" : Long.toString(value);
+        }
+
+        final double value = num.doubleValue();
+        if (Double.isNaN(value)) return "NAN";
+        if (Double.isInfinite(value)) return value > 0 ? "INFINITY" : "(-INFINITY)";
+        final String str = num.size > Float.SIZE ? Double.toString(value) : Float.toString((float) value) + "f";
+        return value < 0 ? "(" + str + ")" : str;
+    }
+
+    private String valueOf(final Value v) {
+        if (v instanceof Fixnum) {
+            return literal((Fixnum) v);
+        }
+        final String name = v.toString();
+        if (isFunction(name))       return "((int64_t) (intptr_t) " + mangleFunction(name) + ")";
+        if (name.startsWith("@"))   return mangleGlobal(name);
+        return mangleLocal(name);
+    }
+
+    private String newLocal(final Slot slot) {
+        final String name = "c" + extraLocals++;
+        decls.add("    " + ctype(slot) + " " + name + ";");
+        return name;
+    }
+
+    private String addressOf(final Value v, final List<String> code) {
+        if (isVariable(v)) {
+            return "&" + valueOf(v);
+        }
+        // Constants were propagated into it, give it a home
+        final Slot slot = slotOf(v);
+        final String tmp = newLocal(slot);
+        code.add("    " + tmp + " = " + valueOf(v) + ";");
+        return "&" + tmp;
+    }
+
+    private String attrAddr(final Value base, final int offset, final List<String> code) {
+        final String addr = "(char *) " + addressOf(base, code);
+        return offset == 0 ? addr : addr + " + " + offset;
+    }
+
+    private String derefAddr(final Value ptr, final int offset) {
+        final String addr = "(char *) (intptr_t) " + valueOf(ptr);
+        return offset == 0 ? addr : addr + " + " + offset;
+    }
+
+    private void assign(final String dst, final Slot dstSlot, final String expr, final Slot exprSlot, final List<String> code) {
+        if (ctype(dstSlot).equals(ctype(exprSlot))) {
+            code.add("    " + dst + " = " + expr + ";");
+        } else if (dstSlot.isScalar() && exprSlot.isScalar()) {
+            code.add("    " + dst + " = (" + ctype(dstSlot) + ") " + expr + ";");
+        } else {
+            // Same bytes under a different size, copy what fits
+            final int size = Math.min(dstSlot.size, exprSlot.size);
+            code.add("    { " + ctype(exprSlot) + " s = " + expr + "; memset(&" + dst + ", 0, sizeof (" + dst + ")); memcpy(&" + dst + ", &s, " + size + "); }");
+        }
+    }
+
+    private void assign(final Value dst, final String expr, final Slot exprSlot, final List<String> code) {
+        assign(valueOf(dst), slotOf(dst), expr, exprSlot, code);
+    }
+
+    private String convertTo(final Value v, final Slot slot, final List<String> code) {
+        final Slot from = slotOf(v);
+        if (ctype(from).equals(ctype(slot))) {
+            return valueOf(v);
+        }
+        if (from.isScalar() && slot.isScalar()) {
+            return "(" + ctype(slot) + ") " + valueOf(v);
+        }
+        final String tmp = newLocal(slot);
+        assign(tmp, slot, valueOf(v), from, code);
+        return tmp;
+    }
+
+    private void load(final Value dst, final String addr, final int size, final List<String> code) {
+        final Slot slot = slotOf(dst);
+        final String name = valueOf(dst);
+        if (slot.size == size) {
+            code.add("    memcpy(&" + name + ", " + addr + ", " + size + ");");
+        } else if (slot.isScalar()) {
+            final Slot narrow = new Slot(slot.floatPoint, size);
+            code.add("    { " + ctype(narrow) + " s; memcpy(&s, " + addr + ", " + size + "); " + name + " = s; }");
+        } else {
+            code.add("    memcpy(&" + name + ", " + addr + ", " + Math.min(slot.size, size) + ");");
+        }
+    }
+
+    private void store(final String addr, final Value v, final int size, final List<String> code) {
+        final Slot slot = slotOf(v);
+        if (isVariable(v) && (slot.size == size || !slot.isScalar())) {
+            code.add("    memcpy(" + addr + ", &" + valueOf(v) + ", " + Math.min(slot.size, size) + ");");
+        } else {
+            final Slot narrow = new Slot(slot.floatPoint, size);
+            code.add("    { " + ctype(narrow) + " s = " + valueOf(v) + "; memcpy(" + addr + ", &s, " + size + "); }");
+        }
+    }
+
+    // Functions
+
+    private String convertFunction(final String name, final FuncBlock body) {
+        final List<Statement> stmts = body.code;
+        final FuncType sig = body.signature;
+        final boolean isMain = name.equals("@init");
+        final String retUnit = isMain ? "    return 0;" : "    return;";
+
+        decls = new ArrayList<>();
+        extraLocals = 0;
+
+        final HashSet<Integer> targets = new HashSet<>();
+        final HashSet<Value> bases = new HashSet<>();
+        for (final Statement stmt : stmts) {
+            if (stmt.dst instanceof Label) {
+                targets.add(((Label) stmt.dst).getAddress());
+            }
+            if (stmt.op == Operation.TAILCALL && stmt.dst.toString().equals(name)) {
+                targets.add(0);
+            }
+            if (stmt.op == Operation.PUT_ATTR || stmt.op == Operation.REFER_ATTR) {
+                bases.add(stmt.lhs);
+            }
+        }
+
+        final List<String> code = new ArrayList<>();
+        final List<Statement> pushes = new ArrayList<>();
+        final HashMap<Value, View> views = new HashMap<>();
+        int popIdx = 0;
+
+        for (int i = 0; i < stmts.size(); ++i) {
+            final Statement stmt = stmts.get(i);
+            if (targets.contains(i)) {
+                code.add("  L" + i + ": ;");
+            }
+
+            if (stmt.dst instanceof Register && !stmt.op.readsFromDst() && stmt.op != Operation.POINTER_PUT) {
+                views.remove(stmt.dst);
+            }
+
+            final int bs = stmt.getDataSize() / 8;
+            switch (stmt.op) {
+                case NOP:
+                    break;
+                case CONV_BYTE_INT:
+                case CONV_SHORT_INT:
+                case CONV_LONG_INT:
+                case CONV_FLOAT_INT:
+                case CONV_DOUBLE_INT:
+                    convert(stmt, new Slot(false, 4), code);
+                    break;
+                case CONV_INT_BYTE:
+                    convert(stmt, new Slot(false, 1), code);
+                    break;
+                case CONV_INT_SHORT:
+                    convert(stmt, new Slot(false, 2), code);
+                    break;
+                case CONV_INT_LONG:
+                case CONV_FLOAT_LONG:
+                case CONV_DOUBLE_LONG:
+                    convert(stmt, new Slot(false, 8), code);
+                    break;
+                case CONV_INT_FLOAT:
+                case CONV_LONG_FLOAT:
+                case CONV_DOUBLE_FLOAT:
+                    convert(stmt, new Slot(true, 4), code);
+                    break;
+                case CONV_INT_DOUBLE:
+                case CONV_LONG_DOUBLE:
+                case CONV_FLOAT_DOUBLE:
+                    convert(stmt, new Slot(true, 8), code);
+                    break;
+                case INT_LT:    compare(stmt, "<", code); break;
+                case INT_GT:    compare(stmt, ">", code); break;
+                case INT_LE:    compare(stmt, "<=", code); break;
+                case INT_GE:    compare(stmt, ">=", code); break;
+                case INT_EQ:    compare(stmt, "==", code); break;
+                case INT_NE:    compare(stmt, "!=", code); break;
+                case INT_CMP:
+                case LONG_CMP:
+                case FLOAT_CMP:
+                case DOUBLE_CMP: {
+                    final String a = valueOf(stmt.lhs);
+                    final String b = valueOf(stmt.rhs);
+                    assign(stmt.dst, "(" + a + " > " + b + ") - (" + a + " < " + b + ")", new Slot(false, 4), code);
+                    break;
+                }
+                // Signed overflow is undefined in C, but it wraps in the
+                // interpreter, so these go through the unsigned types
+                case INT_ADD:   wrapping(stmt, "+", 4, code); break;
+                case INT_SUB:   wrapping(stmt, "-", 4, code); break;
+                case INT_MUL:   wrapping(stmt, "*", 4, code); break;
+                case LONG_ADD:  wrapping(stmt, "+", 8, code); break;
+                case LONG_SUB:  wrapping(stmt, "-", 8, code); break;
+                case LONG_MUL:  wrapping(stmt, "*", 8, code); break;
+                case INT_DIV:   arithmetic(stmt, "/", new Slot(false, 4), code); break;
+                case INT_MOD:   arithmetic(stmt, "%", new Slot(false, 4), code); break;
+                case LONG_DIV:  arithmetic(stmt, "/", new Slot(false, 8), code); break;
+                case LONG_MOD:  arithmetic(stmt, "%", new Slot(false, 8), code); break;
+                case INT_NEG:
+                    assign(stmt.dst, "(int32_t) -(uint32_t) " + valueOf(stmt.lhs), new Slot(false, 4), code);
+                    break;
+                case LONG_NEG:
+                    assign(stmt.dst, "(int64_t) -(uint64_t) " + valueOf(stmt.lhs), new Slot(false, 8), code);
+                    break;
+                case INT_CPL:
+                    assign(stmt.dst, "~(int32_t) " + valueOf(stmt.lhs), new Slot(false, 4), code);
+                    break;
+                case LONG_CPL:
+                    assign(stmt.dst, "~(int64_t) " + valueOf(stmt.lhs), new Slot(false, 8), code);
+                    break;
+                case FLOAT_ADD: arithmetic(stmt, "+", new Slot(true, 4), code); break;
+                case FLOAT_SUB: arithmetic(stmt, "-", new Slot(true, 4), code); break;
+                case FLOAT_MUL: arithmetic(stmt, "*", new Slot(true, 4), code); break;
+                case FLOAT_DIV: arithmetic(stmt, "/", new Slot(true, 4), code); break;
+                case DOUBLE_ADD: arithmetic(stmt, "+", new Slot(true, 8), code); break;
+                case DOUBLE_SUB: arithmetic(stmt, "-", new Slot(true, 8), code); break;
+                case DOUBLE_MUL: arithmetic(stmt, "*", new Slot(true, 8), code); break;
+                case DOUBLE_DIV: arithmetic(stmt, "/", new Slot(true, 8), code); break;
+                case FLOAT_MOD:
+                    assign(stmt.dst, "fmodf(" + valueOf(stmt.lhs) + ", " + valueOf(stmt.rhs) + ")", new Slot(true, 4), code);
+                    break;
+                case DOUBLE_MOD:
+                    assign(stmt.dst, "fmod(" + valueOf(stmt.lhs) + ", " + valueOf(stmt.rhs) + ")", new Slot(true, 8), code);
+                    break;
+                case FLOAT_NEG:
+                    assign(stmt.dst, "-(float) " + valueOf(stmt.lhs), new Slot(true, 4), code);
+                    break;
+                case DOUBLE_NEG:
+                    assign(stmt.dst, "-(double) " + valueOf(stmt.lhs), new Slot(true, 8), code);
+                    break;
+                case LOAD_TRUE:
+                    assign(stmt.dst, "1", new Slot(false, 1), code);
+                    break;
+                case LOAD_FALSE:
+                    assign(stmt.dst, "0", new Slot(false, 1), code);
+                    break;
+                case LOAD_NUMERAL:
+                case LOAD_FUNC:
+                case STORE_VAR:
+                    assign(stmt.dst, valueOf(stmt.lhs), slotOf(stmt.lhs), code);
+                    break;
+                case REFER_VAR:
+                    assign(stmt.dst, "(int64_t) (intptr_t) " + addressOf(stmt.lhs, code), new Slot(false, 8), code);
+                    break;
+                case REFER_ATTR: {
+                    // Same as PUT_ATTR, the pointer goes into where the
+                    // struct was read from
+                    final View view = views.get(stmt.lhs);
+                    final int offset = offsetOf(stmt);
+                    final String addr = view == null ? attrAddr(stmt.lhs, offset, code)
+                            : offset == 0 ? view.addr : "(" + view.addr + ") + " + offset;
+                    assign(stmt.dst, "(int64_t) (intptr_t) (" + addr + ")", new Slot(false, 8), code);
+                    break;
+                }
+                case POINTER_GET:
+                    load(stmt.dst, derefAddr(stmt.lhs, 0), bs, code);
+                    break;
+                case POINTER_PUT:
+                    store(derefAddr(stmt.dst, 0), stmt.lhs, bs, code);
+                    break;
+                case DEREF_GET_ATTR: {
+                    final String addr = derefAddr(stmt.lhs, offsetOf(stmt));
+                    load(stmt.dst, addr, bs, code);
+                    if (bases.contains(stmt.dst)) {
+                        views.put(stmt.dst, new View(addr, bs, null));
+                    }
+                    break;
+                }
+                case DEREF_PUT_ATTR:
+                    store(derefAddr(stmt.lhs, offsetOf(stmt)), stmt.dst, bs, code);
+                    break;
+                case GET_ATTR: {
+                    final String addr = attrAddr(stmt.lhs, offsetOf(stmt), code);
+                    load(stmt.dst, addr, bs, code);
+                    if (bases.contains(stmt.dst)) {
+                        views.put(stmt.dst, new View(addr, bs, stmt.lhs));
+                    }
+                    break;
+                }
+                case PUT_ATTR:
+                    store(attrAddr(stmt.lhs, offsetOf(stmt), code), stmt.dst, bs, code);
+                    // The interpreter hands out the struct stored in an
+                    // attribute instead of a copy of it (o.inner.a = 5 is
+                    // GET_ATTR then PUT_ATTR), write it back to match
+                    for (Value reg = stmt.lhs; views.containsKey(reg); reg = views.get(reg).parent) {
+                        final View view = views.get(reg);
+                        code.add("    memcpy(" + view.addr + ", &" + valueOf(reg) + ", " + view.size + ");");
+                    }
+                    break;
+                case ALLOC_LOCAL: {
+                    final String dst = valueOf(stmt.dst);
+                    code.add("    memset(&" + dst + ", 0, sizeof (" + dst + "));");
+                    break;
+                }
+                case ALLOC_GLOBAL:
+                    store(attrAddr(stmt.dst, offsetOf(stmt), code), stmt.lhs, bs, code);
+                    break;
+                case RETURN_UNIT:
+                    code.add(retUnit);
+                    break;
+                case RETURN_INT:
+                case RETURN_FLOAT:
+                    code.add("    return " + convertTo(stmt.dst, slotOf(sig.ret), code) + ";");
+                    break;
+                case GOTO:
+                    code.add("    goto L" + ((Label) stmt.dst).getAddress() + ";");
+                    break;
+                case JUMP_INT_LT:   jump(stmt, "<", code); break;
+                case JUMP_INT_GT:   jump(stmt, ">", code); break;
+                case JUMP_INT_LE:   jump(stmt, "<=", code); break;
+                case JUMP_INT_GE:   jump(stmt, ">=", code); break;
+                case JUMP_INT_EQ:   jump(stmt, "==", code); break;
+                case JUMP_INT_NE:   jump(stmt, "!=", code); break;
+                case JUMP_IF_TRUE:
+                    code.add("    if (" + valueOf(stmt.lhs) + ") goto L" + ((Label) stmt.dst).getAddress() + ";");
+                    break;
+                case JUMP_IF_FALSE:
+                    code.add("    if (!" + valueOf(stmt.lhs) + ") goto L" + ((Label) stmt.dst).getAddress() + ";");
+                    break;
+                case POP_PARAM_INT:
+                case POP_PARAM_FLOAT:
+                    if (stmt.dst != null) {
+                        assign(stmt.dst, "a" + popIdx, slotOf(sig.params[popIdx]), code);
+                    }
+                    ++popIdx;
+                    break;
+                case PUSH_PARAM_INT:
+                case PUSH_PARAM_FLOAT:
+                    pushes.add(stmt);
+                    break;
+                case CALL_NATIVE: {
+                    // The function only forwards its parameters
+                    final String nativeName = stmt.dst.toString();
+                    natives.putIfAbsent(nativeName, nativePrototype(nativeName, sig));
+
+                    final StringBuilder call = new StringBuilder(nativeName).append('(');
+                    for (int k = 0; k < sig.params.length; ++k) {
+                        if (k > 0) call.append(", ");
+                        call.append('a').append(k);
+                    }
+                    call.append(')');
+                    if (sig.ret == UNIT) {
+                        code.add("    " + call + ";");
+                        code.add(retUnit);
+                    } else {
+                        code.add("    return " + call + ";");
+                    }
+                    break;
+                }
+                case CALL_INT:
+                case CALL_FLOAT: {
+                    final Slot ret = new Slot(stmt.op == Operation.CALL_FLOAT, bs);
+                    final String call = call(stmt.lhs, pushes, ret, code);
+                    assign(stmt.dst, call, calleeReturn(stmt.lhs, ret), code);
+                    pushes.clear();
+                    break;
+                }
+                case CALL_UNIT:
+                    code.add("    " + call(stmt.dst, pushes, null, code) + ";");
+                    pushes.clear();
+                    break;
+                case TAILCALL:
+                    if (stmt.dst.toString().equals(name)) {
+                        // Calls itself, so it is a loop
+                        for (int k = 0; k < pushes.size(); ++k) {
+                            code.add("    a" + k + " = " + convertTo(pushes.get(k).dst, slotOf(sig.params[k]), code) + ";");
+                        }
+                        code.add("    goto L0;");
+                    } else {
+                        // Left to the sibling call optimization of the C compiler
+                        final Slot ret = isMain || sig.ret == UNIT ? null : slotOf(sig.ret);
+                        final String call = call(stmt.dst, pushes, ret, code);
+                        if (ret == null) {
+                            code.add("    " + call + ";");
+                            code.add(retUnit);
+                        } else {
+                            final Slot actual = calleeReturn(stmt.dst, ret);
+                            if (ctype(actual).equals(ctype(ret))) {
+                                code.add("    return " + call + ";");
+                            } else {
+                                final String tmp = newLocal(ret);
+                                assign(tmp, ret, call, actual, code);
+                                code.add("    return " + tmp + ";");
+                            }
+                        }
+                    }
+                    pushes.clear();
+                    break;
+                default:
+                    throw new RuntimeException("Cannot convert " + stmt + " to C");
+            }
+        }
+        if (targets.contains(stmts.size())) {
+            code.add("  L" + stmts.size() + ": ;");
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        sb.append(isMain ? "int main(void)" : "static " + prototype(name, sig)).append(" {\n");
+        for (final Map.Entry<Value, Slot> entry : locals.entrySet()) {
+            sb.append("    ").append(ctype(entry.getValue())).append(' ').append(valueOf(entry.getKey())).append(";\n");
+        }
+        for (final String decl : decls) {
+            sb.append(decl).append('\n');
+        }
+        for (final String line : code) {
+            sb.append(line).append('\n');
+        }
+        if (isMain && (code.isEmpty() || !code.get(code.size() - 1).equals(retUnit))) {
+            sb.append(retUnit).append('\n');
+        }
+        return sb.append("}\n").toString();
+    }
+
+    private Slot calleeReturn(final Value site, final Slot fallback) {
+        final FuncBlock callee = funcs.get(site.toString());
+        if (callee != null && callee.signature.ret != UNIT) {
+            return slotOf(callee.signature.ret);
+        }
+        return fallback;
+    }
+
+    private String call(final Value site, final List<Statement> pushes, final Slot ret, final List<String> code) {
+        final FuncBlock callee = funcs.get(site.toString());
+        final StringBuilder args = new StringBuilder();
+        if (callee != null) {
+            final Type[] params = callee.signature.params;
+            if (params.length != pushes.size()) {
+                throw new RuntimeException("Call to " + site + " expects " + params.length + " arguments, got " + pushes.size());
+            }
+            for (int k = 0; k < params.length; ++k) {
+                if (k > 0) args.append(", ");
+                args.append(convertTo(pushes.get(k).dst, slotOf(params[k]), code));
+            }
+            return mangleFunction(site.toString()) + "(" + args + ")";
+        }
+
+        // Indirect call, the pushes tell what the callee looks like
+        final StringBuilder type = new StringBuilder(ret == null ? "void" : ctype(ret)).append(" (*)(");
+        for (int k = 0; k < pushes.size(); ++k) {
+            final Statement push = pushes.get(k);
+            final Slot slot = new Slot(push.op == Operation.PUSH_PARAM_FLOAT, push.getDataSize() / 8);
+            if (k > 0) {
+                type.append(", ");
+                args.append(", ");
+            }
+            type.append(ctype(slot));
+            args.append(convertTo(push.dst, slot, code));
+        }
+        if (pushes.isEmpty()) type.append("void");
+        type.append(')');
+        return "((" + type + ") (intptr_t) " + valueOf(site) + ")(" + args + ")";
+    }
+
+    private void convert(final Statement stmt, final Slot to, final List<String> code) {
+        assign(stmt.dst, "(" + ctype(to) + ") " + valueOf(stmt.lhs), to, code);
+    }
+
+    private void compare(final Statement stmt, final String op, final List<String> code) {
+        assign(stmt.dst, valueOf(stmt.lhs) + " " + op + " " + valueOf(stmt.rhs), new Slot(false, 1), code);
+    }
+
+    private void arithmetic(final Statement stmt, final String op, final Slot slot, final List<String> code) {
+        final String type = ctype(slot);
+        assign(stmt.dst, "(" + type + ") " + valueOf(stmt.lhs) + " " + op + " (" + type + ") " + valueOf(stmt.rhs), slot, code);
+    }
+
+    private void wrapping(final Statement stmt, final String op, final int size, final List<String> code) {
+        final String unsigned = size == 8 ? "uint64_t" : "uint32_t";
+        final String signed = size == 8 ? "int64_t" : "int32_t";
+        assign(stmt.dst, "(" + signed + ") ((" + unsigned + ") " + valueOf(stmt.lhs) + " " + op + " (" + unsigned + ") " + valueOf(stmt.rhs) + ")", new Slot(false, size), code);
+    }
+
+    private void jump(final Statement stmt, final String op, final List<String> code) {
+        code.add("    if (" + valueOf(stmt.lhs) + " " + op + " " + valueOf(stmt.rhs) + ") goto L" + ((Label) stmt.dst).getAddress() + ";");
+    }
+}
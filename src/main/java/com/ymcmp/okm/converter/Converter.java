@@ -1,5 +1,8 @@
 package com.ymcmp.okm.converter;
 
+import java.io.Writer;
+import java.io.IOException;
+
 import com.ymcmp.okm.FuncBlock;
 
 import com.ymcmp.okm.tac.Statement;
@@ -11,4 +14,16 @@ public interface Converter {
     public String getResult();
 
     public void reset();
-}
\ No newline at end of file
+
+    // Streaming mode: output of each function is written as soon as it
+    // is converted, finish writes whatever had to be held back until the
+    // end. Converters that cannot stream fall back to getResult.
+
+    public default void convert(String name, FuncBlock body, Writer out) throws IOException {
+        convert(name, body);
+    }
+
+    public default void finish(Writer out) throws IOException {
+        out.write(getResult());
+    }
+}
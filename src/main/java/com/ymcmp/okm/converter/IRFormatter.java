@@ -1,5 +1,8 @@
 package com.ymcmp.okm.converter;
 
+import java.io.Writer;
+import java.io.IOException;
+
 import java.util.List;
 import java.util.ArrayList;
 
@@ -13,8 +16,29 @@ public class IRFormatter implements Converter {
 
     private final List<String> list = new ArrayList<>();
 
+    private boolean streamed = false;
+
     @Override
     public void convert(final String name, final FuncBlock block) {
+        list.add(format(name, block));
+    }
+
+    @Override
+    public void convert(final String name, final FuncBlock block, final Writer out) throws IOException {
+        // Same layout as getResult: functions separated by a blank line
+        if (streamed) {
+            out.write('\n');
+        }
+        out.write(format(name, block));
+        streamed = true;
+    }
+
+    @Override
+    public void finish(final Writer out) throws IOException {
+        // Everything has already been written
+    }
+
+    private static String format(final String name, final FuncBlock block) {
         final StringBuilder sb = new StringBuilder();
         final List<Statement> body = block.code;
 
@@ -22,17 +46,17 @@ public class IRFormatter implements Converter {
         for (int i = 0; i < body.size(); ++i) {
             sb.append(String.format("%4d %s", i, body.get(i))).append('\n');
         }
-
-        list.add(sb.toString());
+        return sb.toString();
     }
 
     @Override
     public void reset() {
         list.clear();
+        streamed = false;
     }
 
     @Override
     public String getResult() {
         return list.stream().collect(Collectors.joining("\n"));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,455 @@
+package com.ymcmp.okm.opt;
+
+import java.util.Map;
+import java.util.List;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Collections;
+
+import com.ymcmp.okm.tac.Label;
+import com.ymcmp.okm.tac.Value;
+import com.ymcmp.okm.tac.Fixnum;
+import com.ymcmp.okm.tac.Register;
+import com.ymcmp.okm.tac.Operation;
+import com.ymcmp.okm.tac.Statement;
+
+public final class ConditionalConstantPass implements Pass {
+
+    // Lattice: missing from the map means not yet known (top), a Fixnum
+    // means constant, BOTTOM means it could be anything
+    private static final Object BOTTOM = new Object();
+
+    private final HashSet<Value> addressTaken = new HashSet<>();
+
+    // Registers that are only defined once have a single lattice value
+    // for the whole function. Only the others are kept in the per block
+    // states, otherwise the states grow with the number of temporaries
+    private final HashMap<Value, Integer> defCount = new HashMap<>();
+    private final HashMap<Value, Object> values = new HashMap<>();
+    private final HashMap<Value, List<ControlFlowGraph.Block>> users = new HashMap<>();
+
+    private final ArrayDeque<ControlFlowGraph.Block> worklist = new ArrayDeque<>();
+    private boolean[] queued;
+    private List<HashMap<Value, Object>> inStates;
+
+    @Override
+    public void reset() {
+        addressTaken.clear();
+        defCount.clear();
+        values.clear();
+        users.clear();
+        worklist.clear();
+        queued = null;
+        inStates = null;
+    }
+
+    @Override
+    public void process(final String fname, final List<Statement> block) {
+        if (block.isEmpty()) {
+            return;
+        }
+
+        for (final Statement stmt : block) {
+            switch (stmt.op) {
+                case REFER_VAR:
+                case REFER_ATTR:
+                    addressTaken.add(stmt.lhs);
+                    break;
+            }
+        }
+
+        for (final Statement stmt : block) {
+            if (isDefinition(stmt)) {
+                defCount.merge(stmt.dst, 1, Integer::sum);
+            }
+        }
+
+        final ControlFlowGraph cfg = new ControlFlowGraph(block);
+        final List<ControlFlowGraph.Block> blocks = cfg.getBlocks();
+        for (final ControlFlowGraph.Block current : blocks) {
+            for (int i = current.start; i < current.end; ++i) {
+                final Statement stmt = block.get(i);
+                addUser(stmt.lhs, current);
+                addUser(stmt.rhs, current);
+                if (stmt.op.readsFromDst()) addUser(stmt.dst, current);
+            }
+        }
+
+        // State on entry of each block, null if no executable edge reaches it
+        inStates = new ArrayList<>(Collections.nCopies(blocks.size(), null));
+        queued = new boolean[blocks.size()];
+
+        inStates.set(0, new HashMap<>());
+        enqueue(cfg.getEntry());
+        while (!worklist.isEmpty()) {
+            final ControlFlowGraph.Block current = worklist.poll();
+            queued[current.id] = false;
+
+            final HashMap<Value, Object> state = new HashMap<>(inStates.get(current.id));
+            for (int i = current.start; i < current.end; ++i) {
+                transfer(block.get(i), state, true);
+            }
+
+            final Statement last = block.get(current.end - 1);
+            for (final ControlFlowGraph.Block succ : getExecutableSuccessors(block, current, last, state)) {
+                if (merge(inStates, succ.id, state)) {
+                    enqueue(succ);
+                }
+            }
+        }
+
+        // Rewrite using the final states
+        for (final ControlFlowGraph.Block current : blocks) {
+            if (inStates.get(current.id) == null) {
+                // Unreachable block
+                for (int i = current.start; i < current.end; ++i) {
+                    block.set(i, new Statement(Operation.NOP));
+                }
+                continue;
+            }
+
+            final HashMap<Value, Object> state = new HashMap<>(inStates.get(current.id));
+            for (int i = current.start; i < current.end; ++i) {
+                final Statement stmt = block.get(i);
+                final Statement repl = rewrite(stmt, state);
+                transfer(stmt, state, false);
+                if (repl != null) {
+                    block.set(i, repl);
+                }
+            }
+        }
+    }
+
+    private void enqueue(final ControlFlowGraph.Block block) {
+        if (!queued[block.id]) {
+            queued[block.id] = true;
+            worklist.add(block);
+        }
+    }
+
+    private void addUser(final Value value, final ControlFlowGraph.Block block) {
+        if (value == null || !isSingleDef(value)) {
+            return;
+        }
+        List<ControlFlowGraph.Block> list = users.get(value);
+        if (list == null) {
+            users.put(value, list = new ArrayList<>(2));
+        }
+        if (list.isEmpty() || list.get(list.size() - 1) != block) {
+            list.add(block);
+        }
+    }
+
+    private boolean isSingleDef(final Value value) {
+        final Integer count = defCount.get(value);
+        return count != null && count == 1;
+    }
+
+    private List<ControlFlowGraph.Block> getExecutableSuccessors(final List<Statement> code, final ControlFlowGraph.Block current, final Statement last, final Map<Value, Object> state) {
+        final Boolean taken = evaluateJump(last, state);
+        if (taken == null) {
+            return current.succs;
+        }
+
+        final ControlFlowGraph.Block target = getTargetBlock(code, current, last);
+        final ArrayList<ControlFlowGraph.Block> list = new ArrayList<>(1);
+        for (final ControlFlowGraph.Block succ : current.succs) {
+            if ((succ == target) == taken) {
+                list.add(succ);
+            }
+        }
+        if (list.isEmpty() && !current.succs.isEmpty()) {
+            // Target is the same as the fallthrough block
+            list.add(current.succs.get(0));
+        }
+        return list;
+    }
+
+    private static ControlFlowGraph.Block getTargetBlock(final List<Statement> code, final ControlFlowGraph.Block current, final Statement last) {
+        final int addr = ((Label) last.dst).getAddress();
+        for (final ControlFlowGraph.Block succ : current.succs) {
+            if (succ.start == addr) {
+                return succ;
+            }
+        }
+        return null;
+    }
+
+    private boolean merge(final List<HashMap<Value, Object>> inStates, final int id, final Map<Value, Object> state) {
+        final HashMap<Value, Object> old = inStates.get(id);
+        if (old == null) {
+            inStates.set(id, new HashMap<>(state));
+            return true;
+        }
+
+        boolean changed = false;
+        for (final Map.Entry<Value, Object> entry : state.entrySet()) {
+            final Object prev = old.get(entry.getKey());
+            final Object next = entry.getValue();
+            if (prev == null) {
+                old.put(entry.getKey(), next);
+                changed = true;
+            } else if (prev != BOTTOM && !isSameConstant(prev, next)) {
+                old.put(entry.getKey(), BOTTOM);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private static boolean isSameConstant(final Object a, final Object b) {
+        if (a == BOTTOM || b == BOTTOM) {
+            return false;
+        }
+        // Fixnum's equals ignores the size
+        final Fixnum f = (Fixnum) a;
+        final Fixnum g = (Fixnum) b;
+        return f.isInt == g.isInt && f.size == g.size && f.value.equals(g.value);
+    }
+
+    private Object lookup(final Value value, final Map<Value, Object> state) {
+        if (value == null) {
+            return BOTTOM;
+        }
+        if (value.isNumeric()) {
+            return value;
+        }
+        if (!isTrackable(value)) {
+            return BOTTOM;
+        }
+        return isSingleDef(value) ? values.get(value) : state.get(value);
+    }
+
+    private boolean isTrackable(final Value value) {
+        // Globals can be changed by calls, address taken registers by
+        // pointers
+        return value.getClass() == Register.class
+                && value.toString().charAt(0) != '@'
+                && !addressTaken.contains(value);
+    }
+
+    private boolean isDefinition(final Statement stmt) {
+        return stmt.dst != null && !stmt.op.readsFromDst() && stmt.op != Operation.POINTER_PUT
+                && ControlFlowGraph.getJumpTarget(stmt) == null && isTrackable(stmt.dst);
+    }
+
+    private void transfer(final Statement stmt, final Map<Value, Object> state, final boolean solving) {
+        if (!isDefinition(stmt)) {
+            return;
+        }
+
+        if (isSingleDef(stmt.dst)) {
+            if (!solving) {
+                return;
+            }
+            // The definition can be reevaluated (inside a loop for example),
+            // the value only ever goes down the lattice
+            final Object result = evaluate(stmt, state);
+            if (result == null) {
+                return;
+            }
+            final Object prev = values.get(stmt.dst);
+            final Object next = prev == null || isSameConstant(prev, result) ? result : BOTTOM;
+            if (prev == null || prev != BOTTOM && next == BOTTOM) {
+                values.put(stmt.dst, next);
+                final List<ControlFlowGraph.Block> list = users.get(stmt.dst);
+                if (list != null) {
+                    for (final ControlFlowGraph.Block user : list) {
+                        if (inStates.get(user.id) != null) enqueue(user);
+                    }
+                }
+            }
+            return;
+        }
+
+        final Object result = evaluate(stmt, state);
+        if (result == null) {
+            state.remove(stmt.dst);
+        } else {
+            state.put(stmt.dst, result);
+        }
+    }
+
+    private Statement rewrite(final Statement stmt, final Map<Value, Object> state) {
+        if (ControlFlowGraph.getJumpTarget(stmt) != null) {
+            final Boolean taken = evaluateJump(stmt, state);
+            if (taken == null || stmt.op == Operation.GOTO) {
+                return null;
+            }
+            return taken ? new Statement(Operation.GOTO, stmt.dst) : new Statement(Operation.NOP);
+        }
+
+        switch (stmt.op) {
+            case LOAD_NUMERAL:
+            case LOAD_TRUE:
+            case LOAD_FALSE:
+                return null;
+            case PUSH_PARAM_INT:
+            case RETURN_INT:
+            case PUT_ATTR:
+            case DEREF_PUT_ATTR: {
+                // Substitute the value operand
+                final Object value = lookup(stmt.dst, state);
+                if (value instanceof Fixnum && !stmt.dst.isNumeric()) {
+                    final Statement repl = new Statement(stmt.op, stmt.lhs, stmt.rhs, (Fixnum) value);
+                    repl.setDataSize(stmt.getDataSize());
+                    return repl;
+                }
+                return null;
+            }
+            default:
+                if (isDefinition(stmt)) {
+                    final Object value = isSingleDef(stmt.dst) ? values.get(stmt.dst) : evaluate(stmt, state);
+                    if (value instanceof Fixnum) {
+                        final Fixnum f = (Fixnum) value;
+                        final Statement repl = new Statement(Operation.LOAD_NUMERAL, f, stmt.dst);
+                        repl.setDataSize(f.size);
+                        return repl;
+                    }
+                }
+                return null;
+        }
+    }
+
+    private Boolean evaluateJump(final Statement stmt, final Map<Value, Object> state) {
+        switch (stmt.op) {
+            case GOTO:
+                return true;
+            case JUMP_IF_TRUE:
+            case JUMP_IF_FALSE: {
+                final Object cond = lookup(stmt.lhs, state);
+                if (!isInt(cond)) return null;
+                final boolean nonZero = ((Fixnum) cond).longValue() != 0;
+                return nonZero == (stmt.op == Operation.JUMP_IF_TRUE);
+            }
+            case JUMP_INT_LT:
+            case JUMP_INT_GT:
+            case JUMP_INT_LE:
+            case JUMP_INT_GE:
+            case JUMP_INT_EQ:
+            case JUMP_INT_NE: {
+                final Object lhs = lookup(stmt.lhs, state);
+                final Object rhs = lookup(stmt.rhs, state);
+                if (!isInt(lhs) || !isInt(rhs)) return null;
+                final long a = ((Fixnum) lhs).longValue();
+                final long b = ((Fixnum) rhs).longValue();
+                switch (stmt.op) {
+                    case JUMP_INT_LT: return a < b;
+                    case JUMP_INT_GT: return a > b;
+                    case JUMP_INT_LE: return a <= b;
+                    case JUMP_INT_GE: return a >= b;
+                    case JUMP_INT_EQ: return a == b;
+                    default:          return a != b;
+                }
+            }
+            default:
+                return null;
+        }
+    }
+
+    private static boolean isInt(final Object val) {
+        return val instanceof Fixnum && ((Fixnum) val).isInt;
+    }
+
+    private Object evaluate(final Statement stmt, final Map<Value, Object> state) {
+        switch (stmt.op) {
+            case LOAD_NUMERAL:
+                return stmt.lhs.isNumeric() ? stmt.lhs : BOTTOM;
+            case LOAD_TRUE:
+                return Fixnum.TRUE;
+            case LOAD_FALSE:
+                return Fixnum.FALSE;
+            case STORE_VAR:
+                return lookup(stmt.lhs, state);
+            case CONV_BYTE_INT:
+            case CONV_SHORT_INT:
+            case CONV_LONG_INT:
+            case CONV_INT_BYTE:
+            case CONV_INT_SHORT:
+            case CONV_INT_LONG:
+            case INT_NEG:
+            case INT_CPL:
+            case LONG_NEG:
+            case LONG_CPL: {
+                final Object a = lookup(stmt.lhs, state);
+                if (a == null) return null;
+                if (!isInt(a)) return BOTTOM;
+                return foldUnary(stmt.op, ((Fixnum) a).longValue());
+            }
+            case INT_LT:
+            case INT_GT:
+            case INT_LE:
+            case INT_GE:
+            case INT_EQ:
+            case INT_NE:
+            case INT_CMP:
+            case INT_ADD:
+            case INT_SUB:
+            case INT_MUL:
+            case INT_DIV:
+            case INT_MOD:
+            case LONG_CMP:
+            case LONG_ADD:
+            case LONG_SUB:
+            case LONG_MUL:
+            case LONG_DIV:
+            case LONG_MOD: {
+                final Object a = lookup(stmt.lhs, state);
+                final Object b = lookup(stmt.rhs, state);
+                if (a == BOTTOM || b == BOTTOM) return BOTTOM;
+                if (a == null || b == null) return null;
+                if (!isInt(a) || !isInt(b)) return BOTTOM;
+                return foldBinary(stmt.op, ((Fixnum) a).longValue(), ((Fixnum) b).longValue());
+            }
+            default:
+                // Floating point, memory and calls are not tracked
+                return BOTTOM;
+        }
+    }
+
+    // Results are built the same way as the interpreter builds them
+
+    private static Object foldUnary(final Operation op, final long a) {
+        switch (op) {
+            case CONV_BYTE_INT:
+            case CONV_SHORT_INT:
+            case CONV_LONG_INT:     return Fixnum.valueOf(a, Integer.SIZE);
+            case CONV_INT_BYTE:     return Fixnum.valueOf(a, Byte.SIZE);
+            case CONV_INT_SHORT:    return Fixnum.valueOf(a, Short.SIZE);
+            case CONV_INT_LONG:     return Fixnum.valueOf(a);
+            case INT_NEG:           return Fixnum.valueOf(-(int) a, Integer.SIZE);
+            case INT_CPL:           return Fixnum.valueOf(~(int) a, Integer.SIZE);
+            case LONG_NEG:          return Fixnum.valueOf(-a);
+            case LONG_CPL:          return Fixnum.valueOf(~a);
+            default:                return BOTTOM;
+        }
+    }
+
+    private static Object foldBinary(final Operation op, final long a, final long b) {
+        final int x = (int) a;
+        final int y = (int) b;
+        switch (op) {
+            case INT_LT:    return x < y ? Fixnum.TRUE : Fixnum.FALSE;
+            case INT_GT:    return x > y ? Fixnum.TRUE : Fixnum.FALSE;
+            case INT_LE:    return x <= y ? Fixnum.TRUE : Fixnum.FALSE;
+            case INT_GE:    return x >= y ? Fixnum.TRUE : Fixnum.FALSE;
+            case INT_EQ:    return x == y ? Fixnum.TRUE : Fixnum.FALSE;
+            case INT_NE:    return x != y ? Fixnum.TRUE : Fixnum.FALSE;
+            case INT_CMP:   return Fixnum.valueOf(Integer.compare(x, y), Integer.SIZE);
+            case INT_ADD:   return Fixnum.valueOf(x + y, Integer.SIZE);
+            case INT_SUB:   return Fixnum.valueOf(x - y, Integer.SIZE);
+            case INT_MUL:   return Fixnum.valueOf(x * y, Integer.SIZE);
+            case INT_DIV:   return y == 0 ? BOTTOM : Fixnum.valueOf(x / y, Integer.SIZE);
+            case INT_MOD:   return y == 0 ? BOTTOM : Fixnum.valueOf(x % y, Integer.SIZE);
+            case LONG_CMP:  return Fixnum.valueOf(Long.compare(a, b), Integer.SIZE);
+            case LONG_ADD:  return Fixnum.valueOf(a + b);
+            case LONG_SUB:  return Fixnum.valueOf(a - b);
+            case LONG_MUL:  return Fixnum.valueOf(a * b);
+            case LONG_DIV:  return b == 0 ? BOTTOM : Fixnum.valueOf(a / b);
+            case LONG_MOD:  return b == 0 ? BOTTOM : Fixnum.valueOf(a % b);
+            default:        return BOTTOM;
+        }
+    }
+}
@@ -68,7 +68,7 @@ public final class ConstantFoldPass implements Pass {
                 case CONV_DOUBLE_INT:
                     if (safeIsNumeric(stmt.lhs)) {
                         final int newSize = getResultSize(stmt.op);
-                        final Value newValue = new Fixnum((long) Double.parseDouble(((Fixnum) stmt.lhs).value), newSize);
+                        final Value newValue = Fixnum.valueOf(((Fixnum) stmt.lhs).longValue(), newSize);
 
                         final Statement newStmt = new Statement(Operation.LOAD_NUMERAL, newValue, stmt.dst);
                         newStmt.setDataSize(newSize);
@@ -143,8 +143,8 @@ public final class ConstantFoldPass implements Pass {
                 final Fixnum lhs = (Fixnum) stmt.lhs;
                 final Fixnum rhs = (Fixnum) stmt.rhs;
                 if (lhs.isInt && rhs.isInt) {
-                    final long a = Long.parseLong(lhs.value);
-                    final long b = Long.parseLong(rhs.value);
+                    final long a = lhs.longValue();
+                    final long b = rhs.longValue();
                     int newSize = lhs.size < rhs.size ? rhs.size : lhs.size;
 
                     final long result;
@@ -166,7 +166,7 @@ public final class ConstantFoldPass implements Pass {
                             // Not optimizable, not an error, just ignore
                             continue;
                     }
-                    final Statement repl = new Statement(Operation.LOAD_NUMERAL, new Fixnum(result, newSize), stmt.dst);
+                    final Statement repl = new Statement(Operation.LOAD_NUMERAL, Fixnum.valueOf(result, newSize), stmt.dst);
                     repl.setDataSize(newSize);
                     block.set(i--, repl);
                 }
@@ -176,7 +176,7 @@ public final class ConstantFoldPass implements Pass {
             if (safeIsNumeric(stmt.lhs)) {
                 final Fixnum lhs = (Fixnum) stmt.lhs;
                 if (lhs.isInt) {
-                    final long a = Long.parseLong(lhs.value);
+                    final long a = lhs.longValue();
                     Statement subst = null;
                     switch (stmt.op) {
                         case INT_ADD: case LONG_ADD:
@@ -196,24 +196,24 @@ public final class ConstantFoldPass implements Pass {
                             break;
                         case INT_MUL: case LONG_MUL:
                             if (a == 0) {
-                                subst = new Statement(Operation.LOAD_NUMERAL, new Fixnum(0, lhs.size), stmt.dst);
+                                subst = new Statement(Operation.LOAD_NUMERAL, Fixnum.valueOf(0, lhs.size), stmt.dst);
                             }
                             break;
                         case INT_DIV: case LONG_DIV:
                             if (a == 0) {
-                                subst = new Statement(Operation.LOAD_NUMERAL, new Fixnum(0, lhs.size), stmt.dst);
+                                subst = new Statement(Operation.LOAD_NUMERAL, Fixnum.valueOf(0, lhs.size), stmt.dst);
                             }
                             break;
                         case INT_MOD: case LONG_MOD:
                             if (a == 0) {
-                                subst = new Statement(Operation.LOAD_NUMERAL, new Fixnum(0, lhs.size), stmt.dst);
+                                subst = new Statement(Operation.LOAD_NUMERAL, Fixnum.valueOf(0, lhs.size), stmt.dst);
                             }
                             break;
                         case INT_NEG: case LONG_NEG:
-                            subst = new Statement(Operation.LOAD_NUMERAL, new Fixnum(-a, lhs.size), stmt.dst);
+                            subst = new Statement(Operation.LOAD_NUMERAL, Fixnum.valueOf(-a, lhs.size), stmt.dst);
                             break;
                         case INT_CPL: case LONG_CPL:
-                            subst = new Statement(Operation.LOAD_NUMERAL, new Fixnum(~a, lhs.size), stmt.dst);
+                            subst = new Statement(Operation.LOAD_NUMERAL, Fixnum.valueOf(~a, lhs.size), stmt.dst);
                             break;
                     }
 
@@ -228,7 +228,7 @@ public final class ConstantFoldPass implements Pass {
             if (safeIsNumeric(stmt.rhs)) {
                 final Fixnum rhs = (Fixnum) stmt.rhs;
                 if (rhs.isInt) {
-                    final long a = Long.parseLong(rhs.value);
+                    final long a = rhs.longValue();
                     Statement subst = null;
                     if (a == 0) {
                         switch (stmt.op) {
@@ -239,7 +239,7 @@ public final class ConstantFoldPass implements Pass {
                                 subst = new Statement(Operation.STORE_VAR, stmt.lhs, stmt.dst);
                                 break;
                             case INT_MUL: case LONG_MUL:
-                                subst = new Statement(Operation.LOAD_NUMERAL, new Fixnum(0, rhs.size), stmt.dst);
+                                subst = new Statement(Operation.LOAD_NUMERAL, Fixnum.valueOf(0, rhs.size), stmt.dst);
                                 break;
                             case INT_DIV: case LONG_DIV:
                             case INT_MOD: case LONG_MOD:
@@ -254,7 +254,7 @@ public final class ConstantFoldPass implements Pass {
                                 subst = new Statement(Operation.STORE_VAR, stmt.lhs, stmt.dst);
                                 break;
                             case INT_MOD: case LONG_MOD:
-                                subst = new Statement(Operation.LOAD_NUMERAL, new Fixnum(0, rhs.size), stmt.dst);
+                                subst = new Statement(Operation.LOAD_NUMERAL, Fixnum.valueOf(0, rhs.size), stmt.dst);
                                 break;
                         }
                     }
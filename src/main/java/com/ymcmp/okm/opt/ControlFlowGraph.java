@@ -0,0 +1,291 @@
+package com.ymcmp.okm.opt;
+
+import java.util.List;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import com.ymcmp.okm.tac.Label;
+import com.ymcmp.okm.tac.Operation;
+import com.ymcmp.okm.tac.Statement;
+
+public final class ControlFlowGraph {
+
+    public static final class Block {
+
+        public final int id;
+        public final int start;
+        public final int end;   // exclusive
+
+        public final List<Block> succs = new ArrayList<>(2);
+        public final List<Block> preds = new ArrayList<>(2);
+
+        private Block idom;
+        private final List<Block> children = new ArrayList<>();
+
+        // Dominator tree numbering, used for constant time dominance checks
+        private int preorder = -1;
+        private int postorder = -1;
+
+        // Position in reverse post order, -1 if unreachable
+        private int rpo = -1;
+
+        private Block(int id, int start, int end) {
+            this.id = id;
+            this.start = start;
+            this.end = end;
+        }
+
+        public boolean isReachable() {
+            return rpo >= 0;
+        }
+
+        public Block getImmediateDominator() {
+            return idom;
+        }
+
+        public List<Block> getDominatedChildren() {
+            return Collections.unmodifiableList(children);
+        }
+
+        @Override
+        public String toString() {
+            return "B" + id + "[" + start + ", " + end + ")";
+        }
+    }
+
+    public final List<Statement> code;
+
+    private final List<Block> blocks = new ArrayList<>();
+    private final List<Block> reversePostOrder = new ArrayList<>();
+    private final int[] blockOf;
+
+    public ControlFlowGraph(final List<Statement> code) {
+        this.code = code;
+        this.blockOf = new int[code.size()];
+
+        final int size = code.size();
+        if (size == 0) {
+            return;
+        }
+
+        // Find the leaders
+        final boolean[] leader = new boolean[size + 1];
+        leader[0] = true;
+        for (int i = 0; i < size; ++i) {
+            final Statement stmt = code.get(i);
+            final Label target = getJumpTarget(stmt);
+            if (target != null) {
+                final int addr = target.getAddress();
+                if (addr >= 0 && addr < size) leader[addr] = true;
+            }
+            if (endsBlock(stmt.op)) {
+                leader[i + 1] = true;
+            }
+        }
+
+        int start = 0;
+        for (int i = 1; i <= size; ++i) {
+            if (leader[i] || i == size) {
+                final Block block = new Block(blocks.size(), start, i);
+                Arrays.fill(blockOf, start, i, block.id);
+                blocks.add(block);
+                start = i;
+            }
+        }
+
+        // Connect the edges
+        for (final Block block : blocks) {
+            final Statement last = code.get(block.end - 1);
+            final Label target = getJumpTarget(last);
+            if (target != null) {
+                final int addr = target.getAddress();
+                if (addr >= 0 && addr < size) {
+                    connect(block, blocks.get(blockOf[addr]));
+                }
+            }
+            if (fallsThrough(last.op) && block.end < size) {
+                connect(block, blocks.get(blockOf[block.end]));
+            }
+        }
+
+        computeReversePostOrder();
+        computeDominators();
+    }
+
+    public static Label getJumpTarget(final Statement stmt) {
+        switch (stmt.op) {
+            case GOTO:
+            case JUMP_IF_TRUE:
+            case JUMP_IF_FALSE:
+            case JUMP_INT_LT:
+            case JUMP_INT_GT:
+            case JUMP_INT_LE:
+            case JUMP_INT_GE:
+            case JUMP_INT_EQ:
+            case JUMP_INT_NE:
+                return (Label) stmt.dst;
+            default:
+                return null;
+        }
+    }
+
+    public static boolean isConditionalJump(final Operation op) {
+        switch (op) {
+            case JUMP_IF_TRUE:
+            case JUMP_IF_FALSE:
+            case JUMP_INT_LT:
+            case JUMP_INT_GT:
+            case JUMP_INT_LE:
+            case JUMP_INT_GE:
+            case JUMP_INT_EQ:
+            case JUMP_INT_NE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean endsBlock(final Operation op) {
+        return op == Operation.GOTO || isConditionalJump(op) || !fallsThrough(op);
+    }
+
+    private static boolean fallsThrough(final Operation op) {
+        switch (op) {
+            case GOTO:
+            case RETURN_UNIT:
+            case RETURN_INT:
+            case RETURN_FLOAT:
+            case TAILCALL:
+            case CALL_NATIVE:   // native functions return after the call
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private static void connect(final Block from, final Block to) {
+        from.succs.add(to);
+        to.preds.add(from);
+    }
+
+    public List<Block> getBlocks() {
+        return Collections.unmodifiableList(blocks);
+    }
+
+    public Block getEntry() {
+        return blocks.isEmpty() ? null : blocks.get(0);
+    }
+
+    public Block getBlockAt(final int addr) {
+        return blocks.get(blockOf[addr]);
+    }
+
+    public List<Block> getReversePostOrder() {
+        return Collections.unmodifiableList(reversePostOrder);
+    }
+
+    public boolean dominates(final Block a, final Block b) {
+        if (!a.isReachable() || !b.isReachable()) {
+            return false;
+        }
+        return a.preorder <= b.preorder && b.postorder <= a.postorder;
+    }
+
+    public boolean dominates(final int defAddr, final int useAddr) {
+        final Block a = getBlockAt(defAddr);
+        final Block b = getBlockAt(useAddr);
+        if (a == b) {
+            return a.isReachable() && defAddr < useAddr;
+        }
+        return dominates(a, b);
+    }
+
+    private void computeReversePostOrder() {
+        // Iterative depth first search (functions can be very large)
+        final List<Block> postOrder = new ArrayList<>(blocks.size());
+        final boolean[] visited = new boolean[blocks.size()];
+        final int[] nextSucc = new int[blocks.size()];
+        final ArrayList<Block> stack = new ArrayList<>();
+
+        final Block entry = blocks.get(0);
+        visited[entry.id] = true;
+        stack.add(entry);
+        while (!stack.isEmpty()) {
+            final Block top = stack.get(stack.size() - 1);
+            if (nextSucc[top.id] < top.succs.size()) {
+                final Block succ = top.succs.get(nextSucc[top.id]++);
+                if (!visited[succ.id]) {
+                    visited[succ.id] = true;
+                    stack.add(succ);
+                }
+            } else {
+                stack.remove(stack.size() - 1);
+                postOrder.add(top);
+            }
+        }
+
+        for (int i = postOrder.size() - 1; i >= 0; --i) {
+            final Block block = postOrder.get(i);
+            block.rpo = reversePostOrder.size();
+            reversePostOrder.add(block);
+        }
+    }
+
+    private void computeDominators() {
+        // Cooper, Harvey and Kennedy's "A Simple, Fast Dominance Algorithm"
+        final Block entry = blocks.get(0);
+        entry.idom = entry;
+
+        boolean changed;
+        do {
+            changed = false;
+            for (final Block block : reversePostOrder) {
+                if (block == entry) continue;
+
+                Block newIdom = null;
+                for (final Block pred : block.preds) {
+                    if (pred.idom == null) continue;
+                    newIdom = newIdom == null ? pred : intersect(pred, newIdom);
+                }
+                if (newIdom != block.idom) {
+                    block.idom = newIdom;
+                    changed = true;
+                }
+            }
+        } while (changed);
+
+        for (final Block block : reversePostOrder) {
+            if (block != entry) {
+                block.idom.children.add(block);
+            }
+        }
+        entry.idom = null;
+
+        // Number the dominator tree
+        int counter = 0;
+        final ArrayList<Block> stack = new ArrayList<>();
+        final int[] nextChild = new int[blocks.size()];
+        entry.preorder = counter++;
+        stack.add(entry);
+        while (!stack.isEmpty()) {
+            final Block top = stack.get(stack.size() - 1);
+            if (nextChild[top.id] < top.children.size()) {
+                final Block child = top.children.get(nextChild[top.id]++);
+                child.preorder = counter++;
+                stack.add(child);
+            } else {
+                stack.remove(stack.size() - 1);
+                top.postorder = counter++;
+            }
+        }
+    }
+
+    private static Block intersect(Block a, Block b) {
+        while (a != b) {
+            while (a.rpo > b.rpo) a = a.idom;
+            while (b.rpo > a.rpo) b = b.idom;
+        }
+        return a;
+    }
+}
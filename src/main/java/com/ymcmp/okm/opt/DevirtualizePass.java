@@ -0,0 +1,178 @@
+package com.ymcmp.okm.opt;
+
+import java.util.Map;
+import java.util.List;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import com.ymcmp.okm.FuncBlock;
+
+import com.ymcmp.okm.tac.Value;
+import com.ymcmp.okm.tac.Fixnum;
+import com.ymcmp.okm.tac.Register;
+import com.ymcmp.okm.tac.Operation;
+import com.ymcmp.okm.tac.Statement;
+
+public final class DevirtualizePass implements ProgramPass {
+
+    // vtable register -> (slot offset -> method)
+    private final HashMap<Value, HashMap<String, Value>> vtables = new HashMap<>();
+
+    @Override
+    public void process(final Map<String, FuncBlock> program) {
+        final FuncBlock init = program.get("@init");
+        if (init == null) {
+            return;
+        }
+
+        // Vtables are private and only ever filled by @init, so their
+        // contents are known for the entire program
+        for (final Statement stmt : init.code) {
+            if (stmt.op == Operation.ALLOC_GLOBAL) {
+                HashMap<String, Value> slots = vtables.get(stmt.dst);
+                if (slots == null) {
+                    vtables.put(stmt.dst, slots = new HashMap<>());
+                }
+                slots.put(((Fixnum) stmt.rhs).value, stmt.lhs);
+            }
+        }
+        if (vtables.isEmpty()) {
+            return;
+        }
+
+        program.values().forEach(func -> devirtualize(func.code));
+
+        // Drop the vtables that are no longer referenced by anything
+        // other than the initializer filling them in
+        final HashSet<Value> referenced = new HashSet<>();
+        program.values().forEach(func -> {
+            for (final Statement stmt : func.code) {
+                if (stmt.op == Operation.ALLOC_GLOBAL) continue;
+                referenced.add(stmt.lhs);
+                referenced.add(stmt.rhs);
+                referenced.add(stmt.dst);
+            }
+        });
+        final List<Statement> initCode = init.code;
+        for (int i = 0; i < initCode.size(); ++i) {
+            final Statement stmt = initCode.get(i);
+            if (stmt.op == Operation.ALLOC_GLOBAL && !referenced.contains(stmt.dst)) {
+                initCode.set(i, new Statement(Operation.NOP));
+            }
+        }
+    }
+
+    private void devirtualize(final List<Statement> block) {
+        final HashMap<Value, Integer> defs = new HashMap<>();
+        final HashMap<Value, Integer> uses = new HashMap<>();
+        final HashSet<Value> addressTaken = new HashSet<>();
+        for (int i = 0; i < block.size(); ++i) {
+            final Statement stmt = block.get(i);
+            countUses(uses, stmt, 1);
+            if (stmt.op == Operation.REFER_VAR) {
+                addressTaken.add(stmt.lhs);
+            }
+            if (stmt.dst != null && !readsDst(stmt.op)) {
+                // Registers defined more than once are not tracked
+                defs.put(stmt.dst, defs.containsKey(stmt.dst) ? -1 : i);
+            }
+        }
+
+        // Step 1: method loads from a known vtable become LOAD_FUNC
+        //   0 REFER_VAR        %T0, @vtable
+        //   1 DEREF_GET_ATTR   %T1, %T0, offset
+        // => 1 is really just LOAD_FUNC   %T1, @method
+        for (int i = 0; i < block.size(); ++i) {
+            final Statement stmt = block.get(i);
+            if (stmt.op != Operation.DEREF_GET_ATTR) continue;
+
+            final Statement ref = getUniqueDef(block, defs, addressTaken, stmt.lhs);
+            if (ref == null || ref.op != Operation.REFER_VAR) continue;
+
+            final HashMap<String, Value> slots = vtables.get(ref.lhs);
+            if (slots == null) continue;
+
+            final Value method = slots.get(((Fixnum) stmt.rhs).value);
+            if (method == null) continue;
+
+            final Statement load = new Statement(Operation.LOAD_FUNC, method, stmt.dst);
+            load.setDataSize(stmt.getDataSize());
+            countUses(uses, stmt, -1);
+            countUses(uses, load, 1);
+            block.set(i, load);
+        }
+
+        // Step 2: calls through a function loaded by LOAD_FUNC become direct
+        for (int i = 0; i < block.size(); ++i) {
+            final Statement stmt = block.get(i);
+            final Statement call;
+            switch (stmt.op) {
+                case CALL_INT:
+                case CALL_FLOAT: {
+                    final Value target = getLoadedFunction(block, defs, addressTaken, stmt.lhs);
+                    if (target == null) continue;
+                    call = new Statement(stmt.op, target, stmt.rhs, stmt.dst);
+                    break;
+                }
+                case CALL_UNIT:
+                case TAILCALL: {
+                    final Value target = getLoadedFunction(block, defs, addressTaken, stmt.dst);
+                    if (target == null) continue;
+                    call = new Statement(stmt.op, stmt.lhs, stmt.rhs, target);
+                    break;
+                }
+                default:
+                    continue;
+            }
+            call.setDataSize(stmt.getDataSize());
+            countUses(uses, stmt, -1);
+            countUses(uses, call, 1);
+            block.set(i, call);
+        }
+
+        // Step 3: the loads are now most likely dead. They need to be removed
+        // here (instead of leaving it to EliminateDeadCodePass) so the vtable
+        // references disappear before deciding which vtables are unused
+        for (int i = block.size() - 1; i >= 0; --i) {
+            final Statement stmt = block.get(i);
+            switch (stmt.op) {
+                case LOAD_FUNC:
+                case REFER_VAR:
+                    if (stmt.dst.isTemporary() && !addressTaken.contains(stmt.dst)
+                            && uses.getOrDefault(stmt.dst, 0) == 0) {
+                        countUses(uses, stmt, -1);
+                        block.set(i, new Statement(Operation.NOP));
+                    }
+                    break;
+            }
+        }
+    }
+
+    private static Statement getUniqueDef(final List<Statement> block, final Map<Value, Integer> defs, final HashSet<Value> addressTaken, final Value reg) {
+        if (reg == null || reg.getClass() != Register.class || !reg.isTemporary() || addressTaken.contains(reg)) {
+            return null;
+        }
+        final Integer addr = defs.get(reg);
+        return addr == null || addr < 0 ? null : block.get(addr);
+    }
+
+    private static Value getLoadedFunction(final List<Statement> block, final Map<Value, Integer> defs, final HashSet<Value> addressTaken, final Value site) {
+        final Statement def = getUniqueDef(block, defs, addressTaken, site);
+        return def != null && def.op == Operation.LOAD_FUNC ? def.lhs : null;
+    }
+
+    private static boolean readsDst(final Operation op) {
+        return op.readsFromDst() || op == Operation.POINTER_PUT;
+    }
+
+    private static void countUses(final Map<Value, Integer> uses, final Statement stmt, final int delta) {
+        if (stmt.lhs != null) uses.merge(stmt.lhs, delta, Integer::sum);
+        if (stmt.rhs != null) uses.merge(stmt.rhs, delta, Integer::sum);
+        if (stmt.dst != null && readsDst(stmt.op)) uses.merge(stmt.dst, delta, Integer::sum);
+    }
+
+    @Override
+    public void reset() {
+        vtables.clear();
+    }
+}
@@ -1,8 +1,9 @@
 package com.ymcmp.okm.opt;
 
 import java.util.List;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.ArrayList;
+import java.util.HashSet;
 
 import com.ymcmp.okm.tac.Value;
 import com.ymcmp.okm.tac.Register;
@@ -11,44 +12,131 @@ import com.ymcmp.okm.tac.Statement;
 
 public final class EliminateDeadCodePass implements Pass {
 
+    // local register -> bit index used by the liveness sets
+    private final HashMap<Value, Integer> index = new HashMap<>();
+    private final HashSet<Value> addressTaken = new HashSet<>();
+
+    @Override
+    public void reset() {
+        index.clear();
+        addressTaken.clear();
+    }
+
     @Override
     public void process(final String fname, final List<Statement> block) {
-        // Gather all local registers used as dst
-        final HashMap<Register, ArrayList<Integer>> temps = new HashMap<>();
-        for (int i = 0; i < block.size(); ++i) {
-            final Statement stmt = block.get(i);
-            if (!stmt.op.hasPotentialSideEffects() && safeIsRegister(stmt.dst)) {
-                final Register dst = (Register) stmt.dst;
-                if (dst.toString().charAt(0) == '@') {
-                    // Global registers definitely cause side effects
-                    // they do not qualify as dead code
-                    continue;
+        if (block.isEmpty()) {
+            return;
+        }
+
+        // Registers that can be modified through a pointer are always live
+        for (final Statement stmt : block) {
+            switch (stmt.op) {
+                case REFER_VAR:
+                case REFER_ATTR:
+                    addressTaken.add(stmt.lhs);
+                    break;
+            }
+        }
+        for (final Statement stmt : block) {
+            track(stmt.dst);
+            track(stmt.lhs);
+            track(stmt.rhs);
+        }
+        if (index.isEmpty()) {
+            return;
+        }
+
+        // Backwards dataflow. Statements that are dead do not make their
+        // operands live, so whole chains of dead code disappear at once
+        final ControlFlowGraph cfg = new ControlFlowGraph(block);
+        final List<ControlFlowGraph.Block> blocks = cfg.getBlocks();
+        final BitSet[] liveIn = new BitSet[blocks.size()];
+        for (int i = 0; i < liveIn.length; ++i) {
+            liveIn[i] = new BitSet();
+        }
+
+        boolean changed;
+        do {
+            changed = false;
+            for (int i = blocks.size() - 1; i >= 0; --i) {
+                final ControlFlowGraph.Block bb = blocks.get(i);
+                final BitSet live = liveOut(bb, liveIn);
+                for (int j = bb.end - 1; j >= bb.start; --j) {
+                    transfer(block.get(j), live);
                 }
-                ArrayList<Integer> addrs = temps.get(dst);
-                if (addrs == null) {
-                    temps.put(dst, addrs = new ArrayList<>());
+                if (!live.equals(liveIn[bb.id])) {
+                    liveIn[bb.id] = live;
+                    changed = true;
+                }
+            }
+        } while (changed);
+
+        for (final ControlFlowGraph.Block bb : blocks) {
+            final BitSet live = liveOut(bb, liveIn);
+            for (int j = bb.end - 1; j >= bb.start; --j) {
+                final Statement stmt = block.get(j);
+                if (isDead(stmt, live)) {
+                    block.set(j, new Statement(Operation.NOP));
+                } else {
+                    transfer(stmt, live);
                 }
-                addrs.add(i);
             }
         }
+    }
 
-        // Check if those registers are referenced as lhs or rhs (or dst for return and push)
-        // Remove them from the map if they are referenced
-        for (int i = 0; i < block.size(); ++i) {
-            final Statement stmt = block.get(i);
-            if (temps.containsKey(stmt.lhs)) temps.remove(stmt.lhs);
-            if (temps.containsKey(stmt.rhs)) temps.remove(stmt.rhs);
-            if (stmt.op.readsFromDst() && temps.containsKey(stmt.dst)) temps.remove(stmt.dst);
+    private void track(final Value val) {
+        if (isLocalRegister(val) && !addressTaken.contains(val) && !index.containsKey(val)) {
+            index.put(val, index.size());
         }
+    }
+
+    private static BitSet liveOut(final ControlFlowGraph.Block bb, final BitSet[] liveIn) {
+        final BitSet live = new BitSet();
+        for (final ControlFlowGraph.Block succ : bb.succs) {
+            live.or(liveIn[succ.id]);
+        }
+        return live;
+    }
+
+    private void transfer(final Statement stmt, final BitSet live) {
+        if (isDead(stmt, live)) {
+            return;
+        }
+
+        final boolean readsDst = readsFromDst(stmt.op);
+        if (!readsDst) {
+            final Integer def = index.get(stmt.dst);
+            if (def != null) live.clear(def);
+        }
+
+        use(stmt.lhs, live);
+        use(stmt.rhs, live);
+        if (readsDst) use(stmt.dst, live);
+    }
+
+    private void use(final Value val, final BitSet live) {
+        final Integer bit = index.get(val);
+        if (bit != null) live.set(bit);
+    }
+
+    private boolean isDead(final Statement stmt, final BitSet live) {
+        if (stmt.op.hasPotentialSideEffects() && stmt.op != Operation.STORE_VAR) {
+            return false;
+        }
+        if (readsFromDst(stmt.op)) {
+            return false;
+        }
+        // Only writes to tracked registers can be dead
+        // (jumps, returns and global registers are never dead)
+        final Integer def = index.get(stmt.dst);
+        return def != null && !live.get(def);
+    }
 
-        // The ones remaining in the map are useless, set them as NOPs in code block
-        temps.values().stream()
-                .flatMap(ArrayList::stream)
-                .mapToInt(e -> e)
-                .forEach(addr -> block.set(addr, new Statement(Operation.NOP)));
+    private static boolean isLocalRegister(final Value val) {
+        return val != null && val.getClass() == Register.class && val.toString().charAt(0) != '@';
     }
 
-    private static boolean safeIsRegister(final Value val) {
-        return val == null ? false : val.getClass() == Register.class;
+    private static boolean readsFromDst(final Operation op) {
+        return op.readsFromDst() || op == Operation.POINTER_PUT;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,79 @@
+package com.ymcmp.okm.opt;
+
+import java.util.Map;
+import java.util.HashSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.ArrayDeque;
+
+import com.ymcmp.okm.Trace;
+import com.ymcmp.okm.FuncBlock;
+
+import com.ymcmp.okm.tac.Value;
+import com.ymcmp.okm.tac.Register;
+import com.ymcmp.okm.tac.Statement;
+
+public final class EliminateDeadFunctionPass implements ProgramPass {
+
+    private final HashSet<String> reachable = new HashSet<>();
+    private final ArrayDeque<String> worklist = new ArrayDeque<>();
+    private final HashSet<String> roots;
+
+    public EliminateDeadFunctionPass() {
+        this(Collections.emptySet());
+    }
+
+    public EliminateDeadFunctionPass(final Collection<String> roots) {
+        this.roots = new HashSet<>(roots);
+    }
+
+    @Override
+    public void process(final Map<String, FuncBlock> program) {
+        if (!program.containsKey("@init")) {
+            return;
+        }
+
+        // Everything starts from @init: it calls the module initializers
+        // and fills in the vtables. A function is live if a live function
+        // mentions it, be it a call, a LOAD_FUNC or a vtable slot. Extra
+        // roots (such as public functions called from C) are also live
+        mark("@init");
+        for (final String name : roots) {
+            if (program.containsKey(name)) {
+                mark(name);
+            }
+        }
+        while (!worklist.isEmpty()) {
+            for (final Statement stmt : program.get(worklist.pop()).code) {
+                visit(program, stmt.lhs);
+                visit(program, stmt.rhs);
+                visit(program, stmt.dst);
+            }
+        }
+
+        final int sizeBefore = program.size();
+        program.keySet().retainAll(reachable);
+        Trace.event(Trace.Category.PASSES, "Eliminated ", sizeBefore - program.size(), " unreachable functions");
+    }
+
+    private void visit(final Map<String, FuncBlock> program, final Value value) {
+        if (value instanceof Register) {
+            final String name = value.toString();
+            if (program.containsKey(name)) {
+                mark(name);
+            }
+        }
+    }
+
+    private void mark(final String name) {
+        if (reachable.add(name)) {
+            worklist.push(name);
+        }
+    }
+
+    @Override
+    public void reset() {
+        reachable.clear();
+        worklist.clear();
+    }
+}
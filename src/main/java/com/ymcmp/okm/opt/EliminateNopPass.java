@@ -1,7 +1,9 @@
 package com.ymcmp.okm.opt;
 
+import java.util.Set;
 import java.util.List;
-import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 
 import com.ymcmp.okm.tac.Label;
 import com.ymcmp.okm.tac.Value;
@@ -12,25 +14,21 @@ public final class EliminateNopPass implements Pass {
 
     @Override
     public void process(final String fname, final List<Statement> block) {
-        final ArrayList<Label> labels = new ArrayList<>();
+        final int size = block.size();
 
-        // Acquire all the labels
-        for (int i = 0; i < block.size(); ++i) {
-            final Statement stmt = block.get(i);
-
-            final Label dst = toLabel(stmt.dst);
-            final Label lhs = toLabel(stmt.lhs);
-            final Label rhs = toLabel(stmt.rhs);
-
-            if (dst != null) labels.add(dst);
-            if (lhs != null) labels.add(lhs);
-            if (rhs != null) labels.add(rhs);
+        // Acquire all the labels (the same label can be used by many
+        // statements, make sure each one is only moved once)
+        final Set<Label> labels = Collections.newSetFromMap(new IdentityHashMap<>());
+        final boolean[] targeted = new boolean[size + 1];
+        for (final Statement stmt : block) {
+            addLabel(labels, targeted, stmt.dst);
+            addLabel(labels, targeted, stmt.lhs);
+            addLabel(labels, targeted, stmt.rhs);
         }
 
         // Eliminate unreachable code (convert them to NOPs)
-        // In the mean time, eliminate NOPs and update label addresses
-        outer:
-        for (int i = 0; i < block.size(); ++i) {
+        boolean hasNops = false;
+        for (int i = 0; i < size; ++i) {
             final Statement stmt = block.get(i);
             switch (stmt.op) {
                 case GOTO: {
@@ -42,54 +40,83 @@ public final class EliminateNopPass implements Pass {
                     // 4 %T1 <- CALL $callsite_1
                     // Inclusive (1, 2) is unreachable given no code jumps to (2)
                     final int dst = ((Label) stmt.dst).getAddress();
-                    if (dst == i + 1) {
-                        // Special case, just eliminate the GOTO statement
-                        block.set(i--, new Statement(Operation.NOP));
-                    } else if (dst > i) {
-                        purgeUnreachedCode(block, labels, i, dst);
+                    if (dst > i) {
+                        i = purgeUnreachedCode(block, targeted, i, dst) - 1;
+                        hasNops = true;
                     }
-                    continue;
+                    break;
                 }
                 case RETURN_UNIT:
                 case RETURN_INT:
                 case RETURN_FLOAT:
                     // Special case of GOTO's example: everything after this
                     // instruction can be purged
-                    purgeUnreachedCode(block, labels, i, block.size());
-                    continue;
-                case NOP: {
-                    for (final Label label : labels) {
-                        final int addr = label.getAddress();
-                        if (addr > i) label.setAddress(addr - 1);
-                    }
-                    block.remove(i--);
-                    continue;
+                    i = purgeUnreachedCode(block, targeted, i, size) - 1;
+                    hasNops = true;
+                    break;
+                case NOP:
+                    hasNops = true;
+                    break;
+            }
+        }
+        if (!hasNops) {
+            return;
+        }
+
+        // Jumps to the next statement that does something are useless.
+        // Going backwards, nextLive[i] is the first non-NOP at or after i
+        final int[] nextLive = new int[size + 1];
+        nextLive[size] = size;
+        for (int i = size - 1; i >= 0; --i) {
+            final Statement stmt = block.get(i);
+            if (stmt.op == Operation.GOTO || ControlFlowGraph.isConditionalJump(stmt.op)) {
+                final int dst = ((Label) stmt.dst).getAddress();
+                if (dst > i && dst <= size && nextLive[dst] == nextLive[i + 1]) {
+                    block.set(i, new Statement(Operation.NOP));
                 }
             }
+            nextLive[i] = block.get(i).op == Operation.NOP ? nextLive[i + 1] : i;
         }
-    }
 
-    private void purgeUnreachedCode(final List<Statement> block, final List<Label> labels, final int start, final int maxWipeRange) {
-        int wipeOut = maxWipeRange;
+        // Compact the code in one go, newAddr[i] is the number of
+        // statements kept before i
+        final int[] newAddr = new int[size + 1];
+        int kept = 0;
+        for (int i = 0; i < size; ++i) {
+            newAddr[i] = kept;
+            final Statement stmt = block.get(i);
+            if (stmt.op != Operation.NOP) {
+                block.set(kept++, stmt);
+            }
+        }
+        newAddr[size] = kept;
+        block.subList(kept, size).clear();
+
         for (final Label label : labels) {
             final int addr = label.getAddress();
-            if (start < addr && addr < wipeOut) {
-                // Code is still reachable beyond addr,
-                // discard everything up until that point
-                wipeOut = addr;
-            }
+            if (addr >= 0 && addr <= size) label.setAddress(newAddr[addr]);
         }
-        // Code range is unreachable. Wipe them
-        wipeRange(block, start + 1, wipeOut);
     }
 
-    private void wipeRange(final List<Statement> block, final int start, final int end) {
-        for (int i = start; i < end; ++i) {
-            block.set(i, new Statement(Operation.NOP));
+    private int purgeUnreachedCode(final List<Statement> block, final boolean[] targeted, final int start, final int maxWipeRange) {
+        // Code is still reachable beyond the first jump target,
+        // discard everything up until that point
+        int wipeOut = start + 1;
+        while (wipeOut < maxWipeRange && !targeted[wipeOut]) {
+            block.set(wipeOut++, new Statement(Operation.NOP));
+        }
+        return wipeOut;
+    }
+
+    private void addLabel(final Set<Label> labels, final boolean[] targeted, final Value val) {
+        final Label label = toLabel(val);
+        if (label != null && labels.add(label)) {
+            final int addr = label.getAddress();
+            if (addr >= 0 && addr < targeted.length) targeted[addr] = true;
         }
     }
 
     private Label toLabel(final Value val) {
         return val == null ? null : val.getClass() == Label.class ? (Label) val : null;
     }
-}
\ No newline at end of file
+}
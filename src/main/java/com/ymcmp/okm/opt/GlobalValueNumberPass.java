@@ -0,0 +1,302 @@
+package com.ymcmp.okm.opt;
+
+import java.util.List;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.ArrayList;
+
+import com.ymcmp.okm.tac.Value;
+import com.ymcmp.okm.tac.Fixnum;
+import com.ymcmp.okm.tac.Register;
+import com.ymcmp.okm.tac.Operation;
+import com.ymcmp.okm.tac.Statement;
+
+public final class GlobalValueNumberPass implements Pass {
+
+    private ControlFlowGraph cfg;
+
+    // register -> address of its only definition (-1 if defined many times)
+    private final HashMap<Value, Integer> defs = new HashMap<>();
+    private final HashSet<Value> addressTaken = new HashSet<>();
+    private final HashSet<Value> writtenStructs = new HashSet<>();
+    private HashSet<Value> structLike;
+
+    // expression -> register holding its value, scoped by the dominator tree
+    private final HashMap<String, Value> available = new HashMap<>();
+    // redundant register -> register that already holds the same value
+    private final HashMap<Value, Value> replacement = new HashMap<>();
+
+    @Override
+    public void reset() {
+        cfg = null;
+        structLike = null;
+        defs.clear();
+        addressTaken.clear();
+        writtenStructs.clear();
+        available.clear();
+        replacement.clear();
+    }
+
+    @Override
+    public void process(final String fname, final List<Statement> block) {
+        if (block.isEmpty()) {
+            return;
+        }
+
+        for (int i = 0; i < block.size(); ++i) {
+            final Statement stmt = block.get(i);
+            switch (stmt.op) {
+                case REFER_VAR:
+                case REFER_ATTR:
+                    addressTaken.add(stmt.lhs);
+                    break;
+                case PUT_ATTR:
+                    writtenStructs.add(stmt.lhs);
+                    break;
+            }
+            if (stmt.dst != null && !readsFromDst(stmt.op)) {
+                defs.put(stmt.dst, defs.containsKey(stmt.dst) ? -1 : i);
+            }
+        }
+        structLike = ScalarReplacePass.findStructLikeValues(block);
+        cfg = new ControlFlowGraph(block);
+
+        // Walk the dominator tree: an expression computed in a block is
+        // available in every block it dominates
+        final ArrayList<ControlFlowGraph.Block> stack = new ArrayList<>();
+        final ArrayList<ArrayList<String>> scopes = new ArrayList<>();
+        final int[] nextChild = new int[cfg.getBlocks().size()];
+        stack.add(cfg.getEntry());
+        scopes.add(numberBlock(block, cfg.getEntry()));
+        while (!stack.isEmpty()) {
+            final ControlFlowGraph.Block top = stack.get(stack.size() - 1);
+            final List<ControlFlowGraph.Block> children = top.getDominatedChildren();
+            if (nextChild[top.id] < children.size()) {
+                final ControlFlowGraph.Block child = children.get(nextChild[top.id]++);
+                stack.add(child);
+                scopes.add(numberBlock(block, child));
+            } else {
+                stack.remove(stack.size() - 1);
+                for (final String key : scopes.remove(scopes.size() - 1)) {
+                    available.remove(key);
+                }
+            }
+        }
+
+        if (replacement.isEmpty()) {
+            return;
+        }
+
+        // Redundant registers are replaced with the original ones
+        for (int i = 0; i < block.size(); ++i) {
+            final Statement stmt = block.get(i);
+            final Value lhs = replacement.getOrDefault(stmt.lhs, stmt.lhs);
+            final Value rhs = replacement.getOrDefault(stmt.rhs, stmt.rhs);
+            final Value dst = readsFromDst(stmt.op) ? replacement.getOrDefault(stmt.dst, stmt.dst) : stmt.dst;
+            if (lhs != stmt.lhs || rhs != stmt.rhs || dst != stmt.dst) {
+                final Statement repl = new Statement(stmt.op, lhs, rhs, dst);
+                repl.setDataSize(stmt.getDataSize());
+                block.set(i, repl);
+            }
+        }
+    }
+
+    private ArrayList<String> numberBlock(final List<Statement> code, final ControlFlowGraph.Block block) {
+        final ArrayList<String> scope = new ArrayList<>();
+
+        // Struct fields that may be written are only tracked within a block
+        // struct -> (field -> register holding the field)
+        final HashMap<Value, HashMap<String, Value>> loads = new HashMap<>();
+
+        for (int i = block.start; i < block.end; ++i) {
+            final Statement stmt = code.get(i);
+            if (isPure(stmt.op)) {
+                final String key = makeKey(stmt, i);
+                if (key != null) {
+                    final Value holder = available.get(key);
+                    if (holder != null) {
+                        eliminate(code, i, holder);
+                    } else if (isTracked(stmt.dst)) {
+                        available.put(key, stmt.dst);
+                        scope.add(key);
+                    }
+                }
+            } else if (stmt.op == Operation.GET_ATTR) {
+                final Value struct = canonical(stmt.lhs);
+                final int size = stmt.getDataSize();
+                if (size > 0 && size <= 64 && !structLike.contains(stmt.dst)) {
+                    final String field = ((Fixnum) stmt.rhs).value + ":" + size;
+                    if (isImmutableStruct(struct) && cfg.dominates(defs.get(struct), i)) {
+                        final String key = "GET_ATTR " + struct + " " + field;
+                        final Value holder = available.get(key);
+                        if (holder != null) {
+                            eliminate(code, i, holder);
+                        } else if (isTracked(stmt.dst)) {
+                            available.put(key, stmt.dst);
+                            scope.add(key);
+                        }
+                    } else {
+                        HashMap<String, Value> fields = loads.get(struct);
+                        final Value holder = fields == null ? null : fields.get(field);
+                        if (holder != null) {
+                            eliminate(code, i, holder);
+                        } else if (isTracked(stmt.dst)) {
+                            if (fields == null) {
+                                loads.put(struct, fields = new HashMap<>());
+                            }
+                            fields.put(field, stmt.dst);
+                        }
+                    }
+                }
+            }
+
+            // Invalidate the loads that could have been changed
+            switch (stmt.op) {
+                case PUT_ATTR:
+                    loads.remove(canonical(stmt.lhs));
+                    break;
+                case REFER_VAR:
+                case REFER_ATTR:
+                case POINTER_PUT:
+                case DEREF_PUT_ATTR:
+                case CALL_NATIVE:
+                case CALL_INT:
+                case CALL_FLOAT:
+                case CALL_UNIT:
+                case TAILCALL:
+                    loads.clear();
+                    break;
+            }
+            if (stmt.dst != null && !readsFromDst(stmt.op)) {
+                loads.remove(stmt.dst);
+            }
+        }
+        return scope;
+    }
+
+    private void eliminate(final List<Statement> code, final int addr, final Value holder) {
+        final Statement stmt = code.get(addr);
+        if (isTracked(stmt.dst)) {
+            // Single definition, just use the holder instead
+            replacement.put(stmt.dst, holder);
+            code.set(addr, new Statement(Operation.NOP));
+        } else {
+            final Statement move = new Statement(Operation.STORE_VAR, holder, stmt.dst);
+            move.setDataSize(getResultSize(stmt));
+            code.set(addr, move);
+        }
+    }
+
+    private String makeKey(final Statement stmt, final int addr) {
+        String lhs = operandKey(stmt.lhs, addr);
+        String rhs = operandKey(stmt.rhs, addr);
+        if (lhs == null || rhs == null) {
+            return null;
+        }
+
+        // Commutative operations are normalized so a + b is b + a
+        Operation op = stmt.op;
+        final Operation pair = op.getCommutativePair();
+        if (pair != null && (pair == op ? lhs.compareTo(rhs) > 0 : op.compareTo(pair) > 0)) {
+            final String tmp = lhs;
+            lhs = rhs;
+            rhs = tmp;
+            op = pair;
+        }
+        return op + " " + lhs + " " + rhs + " " + stmt.getDataSize();
+    }
+
+    private String operandKey(final Value value, final int addr) {
+        if (value == null) {
+            return "";
+        }
+        if (value.isNumeric()) {
+            return value.toString();
+        }
+        final Value reg = canonical(value);
+        if (isTracked(reg) && cfg.dominates(defs.get(reg), addr)) {
+            return reg.toString();
+        }
+        return null;
+    }
+
+    private Value canonical(final Value value) {
+        return replacement.getOrDefault(value, value);
+    }
+
+    private boolean isTracked(final Value reg) {
+        // Only registers that always hold the same value once defined
+        if (reg == null || reg.getClass() != Register.class || reg.toString().charAt(0) == '@') {
+            return false;
+        }
+        final Integer addr = defs.get(reg);
+        return addr != null && addr >= 0 && !addressTaken.contains(reg);
+    }
+
+    private boolean isImmutableStruct(final Value reg) {
+        if (!isTracked(reg) || writtenStructs.contains(reg)) {
+            return false;
+        }
+        // Nested structs are shared with their parent in the interpreter,
+        // they can change without being written to directly
+        switch (cfg.code.get(defs.get(reg)).op) {
+            case GET_ATTR:
+            case DEREF_GET_ATTR:
+            case POINTER_GET:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private static boolean readsFromDst(final Operation op) {
+        return op.readsFromDst() || op == Operation.POINTER_PUT;
+    }
+
+    private static boolean isPure(final Operation op) {
+        // Division by zero traps on the first computation, eliminating the
+        // later ones is still fine
+        return !op.hasPotentialSideEffects() && !op.readsMemory()
+                && !op.branches() && !ControlFlowGraph.isConditionalJump(op);
+    }
+
+    private static int getResultSize(final Statement stmt) {
+        if (stmt.getDataSize() > 0) {
+            return stmt.getDataSize();
+        }
+        switch (stmt.op) {
+            case INT_LT:
+            case INT_GT:
+            case INT_LE:
+            case INT_GE:
+            case INT_EQ:
+            case INT_NE:
+            case CONV_INT_BYTE:
+                return Byte.SIZE;
+            case CONV_INT_SHORT:
+                return Short.SIZE;
+            case LONG_NEG:
+            case LONG_CPL:
+            case LONG_ADD:
+            case LONG_SUB:
+            case LONG_MUL:
+            case LONG_DIV:
+            case LONG_MOD:
+            case DOUBLE_NEG:
+            case DOUBLE_ADD:
+            case DOUBLE_SUB:
+            case DOUBLE_MUL:
+            case DOUBLE_DIV:
+            case DOUBLE_MOD:
+            case CONV_INT_LONG:
+            case CONV_FLOAT_LONG:
+            case CONV_DOUBLE_LONG:
+            case CONV_INT_DOUBLE:
+            case CONV_LONG_DOUBLE:
+            case CONV_FLOAT_DOUBLE:
+                return Long.SIZE;
+            default:
+                return Integer.SIZE;
+        }
+    }
+}
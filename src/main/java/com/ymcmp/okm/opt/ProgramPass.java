@@ -0,0 +1,14 @@
+package com.ymcmp.okm.opt;
+
+import java.util.Map;
+
+import com.ymcmp.okm.FuncBlock;
+
+public interface ProgramPass {
+
+    public void process(Map<String, FuncBlock> program);
+
+    public default void reset() {
+        // Do nothing
+    }
+}
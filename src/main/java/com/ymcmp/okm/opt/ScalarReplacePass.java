@@ -0,0 +1,291 @@
+package com.ymcmp.okm.opt;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.List;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+
+import com.ymcmp.okm.tac.Label;
+import com.ymcmp.okm.tac.Value;
+import com.ymcmp.okm.tac.Fixnum;
+import com.ymcmp.okm.tac.Register;
+import com.ymcmp.okm.tac.Operation;
+import com.ymcmp.okm.tac.Statement;
+
+public final class ScalarReplacePass implements Pass {
+
+    private static final class Group {
+
+        // offset -> size (in bits)
+        public final TreeMap<Long, Integer> fields = new TreeMap<>();
+        public final HashSet<Long> written = new HashSet<>();
+        public final ArrayList<Value> fieldValues = new ArrayList<>();
+
+        public boolean rejected = false;
+
+        public void access(final Statement stmt) {
+            final long offset = ((Fixnum) stmt.rhs).longValue();
+            final int size = stmt.getDataSize();
+            final Integer old = fields.put(offset, size);
+            if ((old != null && old != size) || size <= 0 || size > 64) {
+                // Fields larger than 64 bits are most likely structs
+                rejected = true;
+            }
+        }
+    }
+
+    private final HashMap<Value, Value> parent = new HashMap<>();
+
+    @Override
+    public void process(final String fname, final List<Statement> block) {
+        // Step 1: find the structs that could live in registers. These are
+        // local registers that hold a struct allocated by ALLOC_LOCAL (or a
+        // copy of one)
+        final HashSet<Value> candidates = new HashSet<>();
+        for (final Statement stmt : block) {
+            if (stmt.op == Operation.ALLOC_LOCAL && isLocalRegister(stmt.dst)) {
+                candidates.add(stmt.dst);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return;
+        }
+
+        boolean changed;
+        do {
+            changed = false;
+            for (final Statement stmt : block) {
+                if (stmt.op == Operation.STORE_VAR && candidates.contains(stmt.lhs)
+                        && isLocalRegister(stmt.dst) && candidates.add(stmt.dst)) {
+                    changed = true;
+                }
+            }
+        } while (changed);
+
+        // Step 2: the struct escapes if it is used by anything other than
+        // attribute accesses and copies among the candidates themselves
+        final HashSet<Value> escaped = new HashSet<>();
+        for (final Statement stmt : block) {
+            switch (stmt.op) {
+                case ALLOC_LOCAL:
+                    break;
+                case GET_ATTR:
+                    if (candidates.contains(stmt.dst)) escaped.add(stmt.dst);
+                    if (candidates.contains(stmt.rhs)) escaped.add(stmt.rhs);
+                    break;
+                case PUT_ATTR:
+                    if (candidates.contains(stmt.dst)) escaped.add(stmt.dst);
+                    if (candidates.contains(stmt.rhs)) escaped.add(stmt.rhs);
+                    break;
+                case STORE_VAR: {
+                    final boolean dst = candidates.contains(stmt.dst);
+                    final boolean src = candidates.contains(stmt.lhs);
+                    if (dst && src) {
+                        union(stmt.dst, stmt.lhs);
+                    } else if (dst) {
+                        escaped.add(stmt.dst);
+                    } else if (src) {
+                        escaped.add(stmt.lhs);
+                    }
+                    break;
+                }
+                default:
+                    if (candidates.contains(stmt.dst)) escaped.add(stmt.dst);
+                    if (candidates.contains(stmt.lhs)) escaped.add(stmt.lhs);
+                    if (candidates.contains(stmt.rhs)) escaped.add(stmt.rhs);
+                    break;
+            }
+        }
+
+        // Step 3: gather the layout of each group of structs (the ones
+        // connected by copies need to agree on the layout)
+        final HashMap<Value, Group> groups = new HashMap<>();
+        for (final Value reg : candidates) {
+            final Value root = find(reg);
+            Group group = groups.get(root);
+            if (group == null) {
+                groups.put(root, group = new Group());
+            }
+            if (escaped.contains(reg)) {
+                group.rejected = true;
+            }
+        }
+
+        final HashSet<Value> structLike = findStructLikeValues(block);
+        for (final Statement stmt : block) {
+            switch (stmt.op) {
+                case GET_ATTR:
+                    if (candidates.contains(stmt.lhs)) {
+                        final Group group = groups.get(find(stmt.lhs));
+                        group.access(stmt);
+                        group.fieldValues.add(stmt.dst);
+                    }
+                    break;
+                case PUT_ATTR:
+                    if (candidates.contains(stmt.lhs)) {
+                        final Group group = groups.get(find(stmt.lhs));
+                        group.access(stmt);
+                        group.written.add(((Fixnum) stmt.rhs).longValue());
+                        group.fieldValues.add(stmt.dst);
+                    }
+                    break;
+            }
+        }
+
+        for (final Group group : groups.values()) {
+            if (!group.written.containsAll(group.fields.keySet())) {
+                // Reading a field that is never written, leave it alone
+                group.rejected = true;
+            }
+            for (final Value value : group.fieldValues) {
+                if (structLike.contains(value)) {
+                    // Nested structs are shared by reference in the interpreter
+                    group.rejected = true;
+                }
+            }
+        }
+
+        // Step 4: rewrite, going backwards so insertions do not disturb
+        // the addresses yet to be processed
+        final Collection<Label> labels = collectLabels(block);
+        for (int i = block.size() - 1; i >= 0; --i) {
+            final Statement stmt = block.get(i);
+            switch (stmt.op) {
+                case ALLOC_LOCAL:
+                    if (isReplaced(groups, candidates, stmt.dst)) {
+                        block.set(i, new Statement(Operation.NOP));
+                    }
+                    break;
+                case GET_ATTR:
+                    if (isReplaced(groups, candidates, stmt.lhs)) {
+                        final Statement move = new Statement(Operation.STORE_VAR, getFieldRegister(stmt.lhs, stmt.rhs), stmt.dst);
+                        move.setDataSize(stmt.getDataSize());
+                        block.set(i, move);
+                    }
+                    break;
+                case PUT_ATTR:
+                    if (isReplaced(groups, candidates, stmt.lhs)) {
+                        final Statement move = new Statement(Operation.STORE_VAR, stmt.dst, getFieldRegister(stmt.lhs, stmt.rhs));
+                        move.setDataSize(stmt.getDataSize());
+                        block.set(i, move);
+                    }
+                    break;
+                case STORE_VAR:
+                    if (isReplaced(groups, candidates, stmt.dst)) {
+                        // Struct copy becomes a copy of every field
+                        final ArrayList<Statement> moves = new ArrayList<>();
+                        for (final Map.Entry<Long, Integer> field : groups.get(find(stmt.dst)).fields.entrySet()) {
+                            final Fixnum offset = Fixnum.valueOf(field.getKey());
+                            final Statement move = new Statement(Operation.STORE_VAR,
+                                    getFieldRegister(stmt.lhs, offset),
+                                    getFieldRegister(stmt.dst, offset));
+                            move.setDataSize(field.getValue());
+                            moves.add(move);
+                        }
+                        replaceWith(block, labels, i, moves);
+                    }
+                    break;
+            }
+        }
+
+        parent.clear();
+    }
+
+    private static boolean isLocalRegister(final Value val) {
+        return val != null && val.getClass() == Register.class && val.toString().charAt(0) != '@';
+    }
+
+    static HashSet<Value> findStructLikeValues(final List<Statement> block) {
+        // Anything used as a struct (or whose address is taken) and
+        // everything copied to or from those
+        final HashSet<Value> set = new HashSet<>();
+        for (final Statement stmt : block) {
+            switch (stmt.op) {
+                case ALLOC_LOCAL:
+                    set.add(stmt.dst);
+                    break;
+                case GET_ATTR:
+                case PUT_ATTR:
+                case REFER_ATTR:
+                case REFER_VAR:
+                    set.add(stmt.lhs);
+                    break;
+            }
+        }
+
+        boolean changed;
+        do {
+            changed = false;
+            for (final Statement stmt : block) {
+                if (stmt.op == Operation.STORE_VAR) {
+                    if (set.contains(stmt.lhs)) changed |= set.add(stmt.dst);
+                    if (set.contains(stmt.dst)) changed |= set.add(stmt.lhs);
+                }
+            }
+        } while (changed);
+        return set;
+    }
+
+    private boolean isReplaced(final Map<Value, Group> groups, final HashSet<Value> candidates, final Value reg) {
+        return candidates.contains(reg) && !groups.get(find(reg)).rejected;
+    }
+
+    private static Register getFieldRegister(final Value struct, final Value offset) {
+        // The dot makes sure this cannot clash with user defined names
+        final String name = struct.toString();
+        return Register.makeNamed("$" + name.substring(1) + "." + ((Fixnum) offset).value);
+    }
+
+    private static Collection<Label> collectLabels(final List<Statement> block) {
+        // Labels can be shared by many statements, only adjust each one once
+        final Set<Label> labels = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (final Statement stmt : block) {
+            for (final Value val : Arrays.asList(stmt.dst, stmt.lhs, stmt.rhs)) {
+                if (val instanceof Label) labels.add((Label) val);
+            }
+        }
+        return labels;
+    }
+
+    private static void replaceWith(final List<Statement> block, final Collection<Label> labels, final int addr, final List<Statement> stmts) {
+        if (stmts.isEmpty()) {
+            block.set(addr, new Statement(Operation.NOP));
+            return;
+        }
+
+        block.set(addr, stmts.get(0));
+        final int extra = stmts.size() - 1;
+        if (extra > 0) {
+            block.addAll(addr + 1, stmts.subList(1, stmts.size()));
+            for (final Label label : labels) {
+                final int dst = label.getAddress();
+                if (dst > addr) label.setAddress(dst + extra);
+            }
+        }
+    }
+
+    private Value find(final Value reg) {
+        final Value up = parent.get(reg);
+        if (up == null || up.equals(reg)) {
+            return reg;
+        }
+        final Value root = find(up);
+        parent.put(reg, root);
+        return root;
+    }
+
+    private void union(final Value a, final Value b) {
+        final Value ra = find(a);
+        final Value rb = find(b);
+        if (!ra.equals(rb)) {
+            parent.put(ra, rb);
+        }
+    }
+}
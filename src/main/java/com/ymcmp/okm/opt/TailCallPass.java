@@ -34,7 +34,7 @@ public final class TailCallPass implements Pass {
                     if (stmt.lhs.isNumeric()) {
                         final Fixnum f = (Fixnum) stmt.lhs;
                         final Statement newStmt;
-                        if (f.isInt ? Long.parseLong(f.value) == 0 : Double.parseDouble(f.value) == 0) {
+                        if (f.isInt ? f.longValue() == 0 : f.doubleValue() == 0) {
                             // This jump never happens, convert to nop
                             newStmt = new Statement(Operation.NOP);
                         } else {
@@ -49,7 +49,7 @@ public final class TailCallPass implements Pass {
                     if (stmt.lhs.isNumeric()) {
                         final Fixnum f = (Fixnum) stmt.lhs;
                         final Statement newStmt;
-                        if (f.isInt ? Long.parseLong(f.value) != 0 : Double.parseDouble(f.value) != 0) {
+                        if (f.isInt ? f.longValue() != 0 : f.doubleValue() != 0) {
                             // This jump never happens, convert to nop
                             newStmt = new Statement(Operation.NOP);
                         } else {
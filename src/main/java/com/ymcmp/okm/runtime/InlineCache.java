@@ -0,0 +1,68 @@
+package com.ymcmp.okm.runtime;
+
+import java.util.Map;
+import java.util.List;
+import java.util.ArrayList;
+
+import com.ymcmp.okm.tac.Value;
+import com.ymcmp.okm.tac.Statement;
+
+final class InlineCache implements Value {
+
+    // Call sites that see more callees than this are megamorphic and
+    // always go through the code map
+    private static final int MAX_ENTRIES = 4;
+
+    public final Value site;
+
+    private final Value[] callees = new Value[MAX_ENTRIES];
+    private final ArrayList<List<Statement>> targets = new ArrayList<>(MAX_ENTRIES);
+    private int entries = 0;
+
+    public InlineCache(Value site) {
+        this.site = site;
+    }
+
+    public List<Statement> lookup(final Value callee, final Map<String, List<Statement>> code) {
+        // Callees are usually the same register instance every time
+        // (either the callsite itself or whatever LOAD_FUNC stored)
+        for (int i = 0; i < entries; ++i) {
+            if (callees[i] == callee) {
+                return targets.get(i);
+            }
+        }
+        for (int i = 0; i < entries; ++i) {
+            if (callees[i].equals(callee)) {
+                return targets.get(i);
+            }
+        }
+
+        final List<Statement> target = code.get(callee.toString());
+        if (target != null && entries < MAX_ENTRIES) {
+            callees[entries] = callee;
+            targets.add(target);
+            ++entries;
+        }
+        return target;
+    }
+
+    @Override
+    public InlineCache duplicate() {
+        return this;
+    }
+
+    @Override
+    public boolean isNumeric() {
+        return false;
+    }
+
+    @Override
+    public boolean isTemporary() {
+        return site.isTemporary();
+    }
+
+    @Override
+    public String toString() {
+        return site.toString();
+    }
+}
@@ -5,9 +5,14 @@ import java.util.List;
 import java.util.Stack;
 import java.util.Random;
 import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 
-import java.util.stream.Collectors;
+import java.util.function.Function;
+
+import java.io.PrintStream;
+import java.io.Serializable;
 
 import com.ymcmp.okm.FuncBlock;
 
@@ -20,35 +25,259 @@ public class Machine {
 
     private static final Random RND = new Random();
 
+    // Where the print natives write to
+    private final PrintStream out;
+
+    public Machine() {
+        this(System.out);
+    }
+
+    public Machine(final PrintStream out) {
+        this.out = out;
+    }
+
+    // Pointer to a field of a struct, can end up in a snapshot
+    private static final class FieldRef implements Serializable, Mutable {
+
+        private static final long serialVersionUID = 3381290456723L;
+
+        private final StructFields struct;
+        private final String attr;
+
+        public FieldRef(StructFields struct, String attr) {
+            this.struct = struct;
+            this.attr = attr;
+        }
+
+        @Override
+        public Value duplicate() {
+            return this;
+        }
+
+        @Override
+        public Value getValue() {
+            return struct.get(attr);
+        }
+
+        @Override
+        public void setValue(Value value) {
+            struct.put(attr, value);
+        }
+    }
+
+    // Functions that are not loaded yet are asked from the linker the
+    // first time they are looked up
+    private static final class LinkedCode extends HashMap<String, List<Statement>> {
+
+        private static final long serialVersionUID = 4471029385612L;
+
+        private final Function<String, FuncBlock> linker;
+
+        public LinkedCode(Function<String, FuncBlock> linker) {
+            this.linker = linker;
+        }
+
+        @Override
+        public List<Statement> get(final Object key) {
+            List<Statement> func = super.get(key);
+            if (func == null && key instanceof String) {
+                final FuncBlock block = linker.apply((String) key);
+                if (block != null) {
+                    func = new ArrayList<>(block.code);
+                    preprocess(func);
+                    put((String) key, func);
+                }
+            }
+            return func;
+        }
+    }
+
     public Value execute(final Map<String, FuncBlock> chunk) {
-        final Map<String, List<Statement>> code = chunk.entrySet().stream()
-                .collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().code));
+        return execute(chunk, null);
+    }
+
+    // linker can be null, otherwise it provides the functions that are
+    // not in chunk when they are first called
+    public Value execute(final Map<String, FuncBlock> chunk, final Function<String, FuncBlock> linker) {
+        final Map<String, List<Statement>> code = load(chunk, linker);
         // Call the initializer if it exists
         final List<Statement> initializer = code.get("@init");
         if (initializer != null) {
-            preprocess(code);
             return execute(code, initializer);
         }
         return null;
     }
 
-    private void preprocess(final Map<String, List<Statement>> code) {
-        code.forEach((k, v) -> {
-            // Reorder pop param statements
-            int upperBound = 0;
-            loop:
-            for (int i = 0; i < v.size(); ++i) {
-                switch (v.get(i).op) {
-                    case POP_PARAM_INT:
-                    case POP_PARAM_FLOAT:
-                        ++upperBound;
-                        break;
-                    default:
-                        break loop;
-                }
+    // Runs @init up to the first call to one of the entry initializers.
+    // Resuming the snapshot runs the rest
+    public Snapshot snapshot(final Map<String, FuncBlock> chunk, final Collection<String> entryInits) {
+        final FuncBlock init = chunk.get("@init");
+        if (init == null) {
+            throw new RuntimeException("Cannot snapshot a program without @init");
+        }
+
+        int split = init.code.size();
+        for (int i = init.code.size() - 1; i >= 0; --i) {
+            final Statement stmt = init.code.get(i);
+            if (stmt.op.branchesToAddress()) {
+                throw new RuntimeException("Cannot snapshot an @init that jumps");
+            }
+            if ((stmt.op == Operation.CALL_UNIT || stmt.op == Operation.TAILCALL)
+                    && entryInits.contains(stmt.dst.toString())) {
+                split = i;
+            }
+        }
+
+        final List<Statement> prefix = new ArrayList<>(init.code.subList(0, split));
+        prefix.add(new Statement(Operation.RETURN_UNIT));
+        final List<Statement> rest = new ArrayList<>(init.code.subList(split, init.code.size()));
+        if (rest.isEmpty()) {
+            rest.add(new Statement(Operation.RETURN_UNIT));
+        }
+
+        preprocess(prefix);
+        execute(load(chunk, null), prefix);
+
+        // Only globals outlive the initializers (and whatever the rest of
+        // @init still refers to)
+        final Map<Value, Value> globals = new HashMap<>();
+        locals.forEach((k, v) -> {
+            if (k.toString().startsWith("@")) {
+                globals.put(k, v);
             }
-            Collections.reverse(v.subList(0, upperBound));
         });
+        for (final Statement stmt : rest) {
+            if (stmt.lhs != null && locals.containsKey(stmt.lhs)) globals.put(stmt.lhs, locals.get(stmt.lhs));
+            if (stmt.rhs != null && locals.containsKey(stmt.rhs)) globals.put(stmt.rhs, locals.get(stmt.rhs));
+            if (stmt.dst != null && locals.containsKey(stmt.dst)) globals.put(stmt.dst, locals.get(stmt.dst));
+        }
+        return new Snapshot(chunk, globals, rest);
+    }
+
+    public Value resume(final Snapshot image) {
+        locals.putAll(image.globals);
+        final List<Statement> rest = new ArrayList<>(image.entry);
+        preprocess(rest);
+        return execute(load(image.code, null), rest);
+    }
+
+    private static Map<String, List<Statement>> load(final Map<String, FuncBlock> chunk, final Function<String, FuncBlock> linker) {
+        // Preprocessing rewrites the statements, it works on copies so the
+        // program itself stays intact (it might be saved in a snapshot)
+        final Map<String, List<Statement>> code = linker == null ? new HashMap<>() : new LinkedCode(linker);
+        chunk.forEach((k, v) -> {
+            final List<Statement> func = new ArrayList<>(v.code);
+            preprocess(func);
+            code.put(k, func);
+        });
+        return code;
+    }
+
+    private static void preprocess(final List<Statement> v) {
+        // Reorder pop param statements
+        int upperBound = 0;
+        loop:
+        for (int i = 0; i < v.size(); ++i) {
+            switch (v.get(i).op) {
+                case POP_PARAM_INT:
+                case POP_PARAM_FLOAT:
+                    ++upperBound;
+                    break;
+                default:
+                    break loop;
+            }
+        }
+        Collections.reverse(v.subList(0, upperBound));
+
+        attachInlineCaches(v);
+        fuseSuperinstructions(v);
+    }
+
+    private static void attachInlineCaches(final List<Statement> func) {
+        for (int i = 0; i < func.size(); ++i) {
+            final Statement stmt = func.get(i);
+            final Statement linked;
+            switch (stmt.op) {
+                case CALL_INT:
+                case CALL_FLOAT:
+                    linked = new Statement(stmt.op, new InlineCache(stmt.lhs), stmt.rhs, stmt.dst);
+                    break;
+                case CALL_UNIT:
+                case TAILCALL:
+                    linked = new Statement(stmt.op, stmt.lhs, stmt.rhs, new InlineCache(stmt.dst));
+                    break;
+                default:
+                    continue;
+            }
+            linked.setDataSize(stmt.getDataSize());
+            func.set(i, linked);
+        }
+    }
+
+    private static void fuseSuperinstructions(final List<Statement> func) {
+        // Statements covered by a superinstruction are left in place, only
+        // the head is replaced. Label addresses therefore remain valid.
+        for (int i = 0; i < func.size() - 1; ++i) {
+            final Statement stmt = func.get(i);
+            final Statement next = func.get(i + 1);
+            switch (stmt.op) {
+                case LOAD_NUMERAL:
+                    if (next.op == Operation.INT_ADD
+                            && (stmt.dst.equals(next.lhs) || stmt.dst.equals(next.rhs))) {
+                        func.set(i, fuse(Operation.FUSED_LOAD_ADD, stmt));
+                    }
+                    break;
+                case INT_LT:
+                case INT_GT:
+                case INT_LE:
+                case INT_GE:
+                case INT_EQ:
+                case INT_NE:
+                case INT_CMP:
+                case LONG_CMP:
+                case FLOAT_CMP:
+                case DOUBLE_CMP:
+                    if ((next.op == Operation.JUMP_IF_TRUE || next.op == Operation.JUMP_IF_FALSE)
+                            && stmt.dst.equals(next.lhs)) {
+                        func.set(i, fuse(Operation.FUSED_CMP_JUMP, stmt));
+                    }
+                    break;
+                case PUSH_PARAM_INT:
+                case PUSH_PARAM_FLOAT: {
+                    int j = i + 1;
+                    while (j < func.size() && isPushParam(func.get(j).op)) {
+                        ++j;
+                    }
+                    if (j < func.size()) {
+                        switch (func.get(j).op) {
+                            case CALL_INT:
+                            case CALL_FLOAT:
+                            case CALL_UNIT:
+                                func.set(i, fuse(Operation.FUSED_PUSH_CALL, stmt));
+                                break;
+                        }
+                    }
+                    // Only the first push of a run becomes the head
+                    i = j - 1;
+                    break;
+                }
+                case POINTER_GET:
+                    if (next.op == Operation.GET_ATTR && stmt.dst.equals(next.lhs)) {
+                        func.set(i, fuse(Operation.FUSED_POINTER_GET_ATTR, stmt));
+                    }
+                    break;
+            }
+        }
+    }
+
+    private static Statement fuse(final Operation op, final Statement head) {
+        final Statement stmt = new Statement(op, head.lhs, head.rhs, head.dst);
+        stmt.setDataSize(head.getDataSize());
+        return stmt;
+    }
+
+    private static boolean isPushParam(final Operation op) {
+        return op == Operation.PUSH_PARAM_INT || op == Operation.PUSH_PARAM_FLOAT;
     }
 
     private Value execute(final Map<String, List<Statement>> code, final String funcName) {
@@ -62,14 +291,14 @@ public class Machine {
     private boolean tryCallSpecialFunctions(final String funcName, final Mutable mut) {
         switch (funcName) {
         // std.io
-            case "print_int":      System.out.print(toInt(callStack.pop())); return true;
-            case "println_int":    System.out.println(toInt(callStack.pop())); return true;
-            case "print_long":     System.out.print(toLong(callStack.pop())); return true;
-            case "println_long":   System.out.println(toLong(callStack.pop())); return true;
-            case "print_double":   System.out.print(toDouble(callStack.pop())); return true;
-            case "println_double": System.out.println(toDouble(callStack.pop())); return true;
-            case "print_bool":     System.out.print(toBool(callStack.pop())); return true;
-            case "println_bool":   System.out.println(toBool(callStack.pop())); return true;
+            case "print_int":      out.print(toInt(callStack.pop())); return true;
+            case "println_int":    out.println(toInt(callStack.pop())); return true;
+            case "print_long":     out.print(toLong(callStack.pop())); return true;
+            case "println_long":   out.println(toLong(callStack.pop())); return true;
+            case "print_double":   out.print(toDouble(callStack.pop())); return true;
+            case "println_double": out.println(toDouble(callStack.pop())); return true;
+            case "print_bool":     out.print(toBool(callStack.pop())); return true;
+            case "println_bool":   out.println(toBool(callStack.pop())); return true;
         // std.math
             case "math_power": {
                 final float exp = toFloat(callStack.pop());
@@ -78,7 +307,7 @@ public class Machine {
                 return true;
             }
             case "math_random":
-                mut.setValue(new Fixnum(RND.nextInt(), 32));
+                mut.setValue(Fixnum.valueOf(RND.nextInt(), 32));
                 return true;
             case "math_sin":
                 mut.setValue(new Fixnum(Math.sin(toFloat(callStack.pop())), 32));
@@ -136,29 +365,29 @@ public class Machine {
                         break;
                     case CONV_BYTE_INT: //      dst:result, lhs:base
                     case CONV_SHORT_INT://      dst:result, lhs:base
-                        locals.put(stmt.dst, new Fixnum(toInt(fetchValue(stmt.lhs)), Integer.SIZE));
+                        locals.put(stmt.dst, Fixnum.valueOf(toInt(fetchValue(stmt.lhs)), Integer.SIZE));
                         break;
                     case CONV_LONG_INT: //      dst:result, lhs:base
-                        locals.put(stmt.dst, new Fixnum(toLong(fetchValue(stmt.lhs)), Integer.SIZE));
+                        locals.put(stmt.dst, Fixnum.valueOf(toLong(fetchValue(stmt.lhs)), Integer.SIZE));
                         break;
                     case CONV_INT_BYTE: //      dst:result, lhs:base
-                        locals.put(stmt.dst, new Fixnum(toInt(fetchValue(stmt.lhs)), Byte.SIZE));
+                        locals.put(stmt.dst, Fixnum.valueOf(toInt(fetchValue(stmt.lhs)), Byte.SIZE));
                         break;
                     case CONV_INT_SHORT://      dst:result, lhs:base
-                        locals.put(stmt.dst, new Fixnum(toInt(fetchValue(stmt.lhs)), Short.SIZE));
+                        locals.put(stmt.dst, Fixnum.valueOf(toInt(fetchValue(stmt.lhs)), Short.SIZE));
                         break;
                     case CONV_INT_LONG: //      dst:result, lhs:base
-                        locals.put(stmt.dst, new Fixnum(toLong(fetchValue(stmt.lhs))));
+                        locals.put(stmt.dst, Fixnum.valueOf(toLong(fetchValue(stmt.lhs))));
                         break;
                     case CONV_INT_FLOAT: //     dst:result, lhs:base
                     case CONV_LONG_FLOAT: //    dst:result, lhs:base
                         locals.put(stmt.dst, new Fixnum(toFloat(fetchValue(stmt.lhs))));
                         break;
                     case CONV_FLOAT_INT: //     dst:result, lhs:base
-                        locals.put(stmt.dst, new Fixnum((int) toFloat(fetchValue(stmt.lhs)), Integer.SIZE));
+                        locals.put(stmt.dst, Fixnum.valueOf((int) toFloat(fetchValue(stmt.lhs)), Integer.SIZE));
                         break;
                     case CONV_FLOAT_LONG: //    dst:result, lhs:base
-                        locals.put(stmt.dst, new Fixnum((long) toFloat(fetchValue(stmt.lhs))));
+                        locals.put(stmt.dst, Fixnum.valueOf((long) toFloat(fetchValue(stmt.lhs))));
                         break;
                     case CONV_INT_DOUBLE: //    dst:result, lhs:base
                     case CONV_LONG_DOUBLE: //   dst:result, lhs:base
@@ -169,10 +398,10 @@ public class Machine {
                         locals.put(stmt.dst, new Fixnum((float) toDouble(fetchValue(stmt.lhs))));
                         break;
                     case CONV_DOUBLE_LONG: //   dst:result, lhs:base
-                        locals.put(stmt.dst, new Fixnum((long) toDouble(fetchValue(stmt.lhs))));
+                        locals.put(stmt.dst, Fixnum.valueOf((long) toDouble(fetchValue(stmt.lhs))));
                         break;
                     case CONV_DOUBLE_INT: //    dst:result, lhs:base
-                        locals.put(stmt.dst, new Fixnum((int) toDouble(fetchValue(stmt.lhs)), Integer.SIZE));
+                        locals.put(stmt.dst, Fixnum.valueOf((int) toDouble(fetchValue(stmt.lhs)), Integer.SIZE));
                         break;
                     case INT_LT:        //      dst:result, lhs:a, rhs:b
                         locals.put(stmt.dst, makeBool(toInt(fetchValue(stmt.lhs)) < toInt(fetchValue(stmt.rhs))));
@@ -193,55 +422,55 @@ public class Machine {
                         locals.put(stmt.dst, makeBool(toInt(fetchValue(stmt.lhs)) != toInt(fetchValue(stmt.rhs))));
                         break;
                     case INT_CMP:       //      dst:result, lhs:a, rhs:b
-                        locals.put(stmt.dst, new Fixnum(Integer.compare(toInt(fetchValue(stmt.lhs)), toInt(fetchValue(stmt.rhs))), Integer.SIZE));
+                        locals.put(stmt.dst, Fixnum.valueOf(Integer.compare(toInt(fetchValue(stmt.lhs)), toInt(fetchValue(stmt.rhs))), Integer.SIZE));
                         break;
                     case INT_NEG:       //      dst:result, lhs:base
-                        locals.put(stmt.dst, new Fixnum(-toInt(fetchValue(stmt.lhs)), Integer.SIZE));
+                        locals.put(stmt.dst, Fixnum.valueOf(-toInt(fetchValue(stmt.lhs)), Integer.SIZE));
                         break;
                     case INT_CPL:       //      dst:result, lhs:base
-                        locals.put(stmt.dst, new Fixnum(~toInt(fetchValue(stmt.lhs)), Integer.SIZE));
+                        locals.put(stmt.dst, Fixnum.valueOf(~toInt(fetchValue(stmt.lhs)), Integer.SIZE));
                         break;
                     case INT_ADD:       //      dst:result, lhs:a, rhs:b
-                        locals.put(stmt.dst, new Fixnum(toInt(fetchValue(stmt.lhs)) + toInt(fetchValue(stmt.rhs)), Integer.SIZE));
+                        locals.put(stmt.dst, Fixnum.valueOf(toInt(fetchValue(stmt.lhs)) + toInt(fetchValue(stmt.rhs)), Integer.SIZE));
                         break;
                     case INT_SUB:       //      dst:result, lhs:a, rhs:b
-                        locals.put(stmt.dst, new Fixnum(toInt(fetchValue(stmt.lhs)) - toInt(fetchValue(stmt.rhs)), Integer.SIZE));
+                        locals.put(stmt.dst, Fixnum.valueOf(toInt(fetchValue(stmt.lhs)) - toInt(fetchValue(stmt.rhs)), Integer.SIZE));
                         break;
                     case INT_MUL:       //      dst:result, lhs:a, rhs:b
-                        locals.put(stmt.dst, new Fixnum(toInt(fetchValue(stmt.lhs)) * toInt(fetchValue(stmt.rhs)), Integer.SIZE));
+                        locals.put(stmt.dst, Fixnum.valueOf(toInt(fetchValue(stmt.lhs)) * toInt(fetchValue(stmt.rhs)), Integer.SIZE));
                         break;
                     case INT_DIV:       //      dst:result, lhs:a, rhs:b
-                        locals.put(stmt.dst, new Fixnum(toInt(fetchValue(stmt.lhs)) / toInt(fetchValue(stmt.rhs)), Integer.SIZE));
+                        locals.put(stmt.dst, Fixnum.valueOf(toInt(fetchValue(stmt.lhs)) / toInt(fetchValue(stmt.rhs)), Integer.SIZE));
                         break;
                     case INT_MOD:       //      dst:result, lhs:a, rhs:b
-                        locals.put(stmt.dst, new Fixnum(toInt(fetchValue(stmt.lhs)) % toInt(fetchValue(stmt.rhs)), Integer.SIZE));
+                        locals.put(stmt.dst, Fixnum.valueOf(toInt(fetchValue(stmt.lhs)) % toInt(fetchValue(stmt.rhs)), Integer.SIZE));
                         break;
                     case LONG_CMP:      //      dst:result, lhs:a, rhs:b
-                        locals.put(stmt.dst, new Fixnum(Long.compare(toLong(fetchValue(stmt.lhs)), toLong(fetchValue(stmt.rhs))), Integer.SIZE));
+                        locals.put(stmt.dst, Fixnum.valueOf(Long.compare(toLong(fetchValue(stmt.lhs)), toLong(fetchValue(stmt.rhs))), Integer.SIZE));
                         break;
                     case LONG_NEG:      //      dst:result, lhs:base
-                        locals.put(stmt.dst, new Fixnum(-toLong(fetchValue(stmt.lhs))));
+                        locals.put(stmt.dst, Fixnum.valueOf(-toLong(fetchValue(stmt.lhs))));
                         break;
                     case LONG_CPL:      //      dst:result, lhs:base
-                        locals.put(stmt.dst, new Fixnum(~toLong(fetchValue(stmt.lhs))));
+                        locals.put(stmt.dst, Fixnum.valueOf(~toLong(fetchValue(stmt.lhs))));
                         break;
                     case LONG_ADD:      //      dst:result, lhs:a, rhs:b
-                        locals.put(stmt.dst, new Fixnum(toLong(fetchValue(stmt.lhs)) + toLong(fetchValue(stmt.rhs))));
+                        locals.put(stmt.dst, Fixnum.valueOf(toLong(fetchValue(stmt.lhs)) + toLong(fetchValue(stmt.rhs))));
                         break;
                     case LONG_SUB:      //      dst:result, lhs:a, rhs:b
-                        locals.put(stmt.dst, new Fixnum(toLong(fetchValue(stmt.lhs)) - toLong(fetchValue(stmt.rhs))));
+                        locals.put(stmt.dst, Fixnum.valueOf(toLong(fetchValue(stmt.lhs)) - toLong(fetchValue(stmt.rhs))));
                         break;
                     case LONG_MUL:      //      dst:result, lhs:a, rhs:b
-                        locals.put(stmt.dst, new Fixnum(toLong(fetchValue(stmt.lhs)) * toLong(fetchValue(stmt.rhs))));
+                        locals.put(stmt.dst, Fixnum.valueOf(toLong(fetchValue(stmt.lhs)) * toLong(fetchValue(stmt.rhs))));
                         break;
                     case LONG_DIV:      //      dst:result, lhs:a, rhs:b
-                        locals.put(stmt.dst, new Fixnum(toLong(fetchValue(stmt.lhs)) / toLong(fetchValue(stmt.rhs))));
+                        locals.put(stmt.dst, Fixnum.valueOf(toLong(fetchValue(stmt.lhs)) / toLong(fetchValue(stmt.rhs))));
                         break;
                     case LONG_MOD:      //      dst:result, lhs:a, rhs:b
-                        locals.put(stmt.dst, new Fixnum(toLong(fetchValue(stmt.lhs)) % toLong(fetchValue(stmt.rhs))));
+                        locals.put(stmt.dst, Fixnum.valueOf(toLong(fetchValue(stmt.lhs)) % toLong(fetchValue(stmt.rhs))));
                         break;
                     case FLOAT_CMP:     //      dst:result, lhs:a, rhs:b
-                        locals.put(stmt.dst, new Fixnum(Float.compare(toFloat(fetchValue(stmt.lhs)), toFloat(fetchValue(stmt.rhs))), Integer.SIZE));
+                        locals.put(stmt.dst, Fixnum.valueOf(Float.compare(toFloat(fetchValue(stmt.lhs)), toFloat(fetchValue(stmt.rhs))), Integer.SIZE));
                         break;
                     case FLOAT_NEG:     //      dst:result, lhs:base
                         locals.put(stmt.dst, new Fixnum(-toFloat(fetchValue(stmt.lhs)), Float.SIZE));
@@ -262,7 +491,7 @@ public class Machine {
                         locals.put(stmt.dst, new Fixnum(toFloat(fetchValue(stmt.lhs)) % toFloat(fetchValue(stmt.rhs)), Float.SIZE));
                         break;
                     case DOUBLE_CMP:    //      dst:result, lhs:a, rhs:b
-                        locals.put(stmt.dst, new Fixnum(Double.compare(toDouble(fetchValue(stmt.lhs)), toDouble(fetchValue(stmt.rhs))), Integer.SIZE));
+                        locals.put(stmt.dst, Fixnum.valueOf(Double.compare(toDouble(fetchValue(stmt.lhs)), toDouble(fetchValue(stmt.rhs))), Integer.SIZE));
                         break;
                     case DOUBLE_NEG:    //      dst:result, lhs:base
                         locals.put(stmt.dst, new Fixnum(-toDouble(fetchValue(stmt.lhs))));
@@ -298,25 +527,7 @@ public class Machine {
                         locals.put(stmt.dst, new MutableCell(fetchValue(stmt.lhs)));
                         break;
                     case REFER_ATTR: {  //      dst:store, lhs:struct, rhs:attr
-                        final StructFields struct = (StructFields) fetchValue(stmt.lhs);
-                        final String attr = stmt.rhs.toString();
-                        locals.put(stmt.dst, new Mutable() {
-
-                            @Override
-                            public Value duplicate() {
-                                return this;
-                            }
-
-                            @Override
-                            public Value getValue() {
-                                return struct.get(attr);
-                            }
-
-                            @Override
-                            public void setValue(Value value) {
-                                struct.put(attr, value);
-                            }
-                        });
+                        locals.put(stmt.dst, new FieldRef((StructFields) fetchValue(stmt.lhs), stmt.rhs.toString()));
                         break;
                     }
                     case POINTER_GET:   //      dst:store, lhs:pointer
@@ -419,16 +630,47 @@ public class Machine {
                     }
                     case CALL_INT:      //      dst:store, lhs:callsite
                     case CALL_FLOAT:    //      dst:store, lhs:callsite
-                        locals.put(stmt.dst, execute(code, fetchValue(stmt.lhs).toString()));
-                        break;
                     case CALL_UNIT:     //      dst:callsite
-                        execute(code, fetchValue(stmt.dst).toString());
+                        performCall(code, stmt);
                         break;
                     case TAILCALL: {    //      dst:callsite
-                        func = code.get(fetchValue(stmt.dst).toString());
+                        func = resolveCallee(code, stmt.dst);
                         i = -1; // invariant ++i will set it to zero
                         continue;
                     }
+                    case FUSED_LOAD_ADD: { //   LOAD_NUMERAL then INT_ADD
+                        final Statement add = func.get(++i);
+                        locals.put(stmt.dst, stmt.lhs);
+                        final int a = toInt(stmt.dst.equals(add.lhs) ? stmt.lhs : fetchValue(add.lhs));
+                        final int b = toInt(stmt.dst.equals(add.rhs) ? stmt.lhs : fetchValue(add.rhs));
+                        locals.put(add.dst, Fixnum.valueOf(a + b, Integer.SIZE));
+                        break;
+                    }
+                    case FUSED_CMP_JUMP: { //   comparison then JUMP_IF_*
+                        final Fixnum flag = compare(stmt);
+                        locals.put(stmt.dst, flag);
+                        final Statement jump = func.get(++i);
+                        if ((toInt(flag) != 0) == (jump.op == Operation.JUMP_IF_TRUE)) {
+                            i = ((Label) jump.dst).getAddress() - 1;    // -1 because loop invariant
+                        }
+                        break;
+                    }
+                    case FUSED_PUSH_CALL: { //  PUSH_PARAM_* (one or more) then CALL_*
+                        callStack.push(fetchValue(stmt.dst).duplicate());
+                        Statement call;
+                        while (isPushParam((call = func.get(++i)).op)) {
+                            callStack.push(fetchValue(call.dst).duplicate());
+                        }
+                        performCall(code, call);
+                        break;
+                    }
+                    case FUSED_POINTER_GET_ATTR: { // POINTER_GET then GET_ATTR
+                        final Value struct = ((Mutable) fetchValue(stmt.lhs)).getValue();
+                        final Statement get = func.get(++i);
+                        locals.put(stmt.dst, struct);
+                        locals.put(get.dst, ((StructFields) fetchValue(get.lhs)).get(get.rhs.toString()));
+                        break;
+                    }
                     default:
                         throw new RuntimeException("Unknown opcode " + stmt.op);
                 }
@@ -440,6 +682,52 @@ public class Machine {
         throw new RuntimeException("Control flowed over expected slot, return statements need to be added!");
     }
 
+    private void performCall(final Map<String, List<Statement>> code, final Statement stmt) {
+        if (stmt.op == Operation.CALL_UNIT) {
+            performCall(code, stmt.dst);
+        } else {
+            locals.put(stmt.dst, performCall(code, stmt.lhs));
+        }
+    }
+
+    private Value performCall(final Map<String, List<Statement>> code, final Value site) {
+        if (site instanceof InlineCache) {
+            final Value callee = fetchValue(((InlineCache) site).site);
+            try {
+                return execute(code, ((InlineCache) site).lookup(callee, code));
+            } catch (RuntimeException ex) {
+                throw new RuntimeException("RTE in stackframe of " + callee, ex);
+            }
+        }
+        return execute(code, fetchValue(site).toString());
+    }
+
+    private List<Statement> resolveCallee(final Map<String, List<Statement>> code, final Value site) {
+        if (site instanceof InlineCache) {
+            return ((InlineCache) site).lookup(fetchValue(((InlineCache) site).site), code);
+        }
+        return code.get(fetchValue(site).toString());
+    }
+
+    private Fixnum compare(final Statement stmt) {
+        final Value lhs = fetchValue(stmt.lhs);
+        final Value rhs = fetchValue(stmt.rhs);
+        switch (stmt.op) {
+            case INT_LT:    return makeBool(toInt(lhs) < toInt(rhs));
+            case INT_GT:    return makeBool(toInt(lhs) > toInt(rhs));
+            case INT_LE:    return makeBool(toInt(lhs) <= toInt(rhs));
+            case INT_GE:    return makeBool(toInt(lhs) >= toInt(rhs));
+            case INT_EQ:    return makeBool(toInt(lhs) == toInt(rhs));
+            case INT_NE:    return makeBool(toInt(lhs) != toInt(rhs));
+            case INT_CMP:   return Fixnum.valueOf(Integer.compare(toInt(lhs), toInt(rhs)), Integer.SIZE);
+            case LONG_CMP:  return Fixnum.valueOf(Long.compare(toLong(lhs), toLong(rhs)), Integer.SIZE);
+            case FLOAT_CMP: return Fixnum.valueOf(Float.compare(toFloat(lhs), toFloat(rhs)), Integer.SIZE);
+            case DOUBLE_CMP:return Fixnum.valueOf(Double.compare(toDouble(lhs), toDouble(rhs)), Integer.SIZE);
+            default:
+                throw new RuntimeException("Not a comparison " + stmt.op);
+        }
+    }
+
     private Value fetchValue(final Value val) {
         return locals.getOrDefault(val, val);
     }
@@ -455,7 +743,7 @@ public class Machine {
     private static int toInt(final Value v) {
         final Fixnum f = (Fixnum) v;
         if (f.isInt && f.size <= Integer.SIZE) {
-            return Integer.parseInt(f.value);
+            return (int) f.longValue();
         }
         throw new RuntimeException("Value " + f + " does not conform to int");
     }
@@ -463,17 +751,17 @@ public class Machine {
     private static long toLong(final Value v) {
         final Fixnum f = (Fixnum) v;
         if (f.isInt && f.size <= Long.SIZE) {
-            return Long.parseLong(f.value);
+            return f.longValue();
         }
         throw new RuntimeException("Value " + f + " does not conform to long");
     }
 
     private static float toFloat(final Value v) {
-        return Float.parseFloat(((Fixnum) v).value);
+        return (float) ((Fixnum) v).doubleValue();
     }
 
     private static double toDouble(final Value v) {
-        return Double.parseDouble(((Fixnum) v).value);
+        return ((Fixnum) v).doubleValue();
     }
 
     public static double asinh(double x) {
@@ -0,0 +1,93 @@
+package com.ymcmp.okm.runtime;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.BufferedOutputStream;
+
+import java.nio.ByteBuffer;
+
+import java.nio.channels.FileChannel;
+
+import java.nio.file.Path;
+import java.nio.file.Files;
+
+import java.util.Map;
+import java.util.List;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import com.ymcmp.okm.FuncBlock;
+
+import com.ymcmp.okm.tac.Value;
+import com.ymcmp.okm.tac.Statement;
+
+// State of the machine after the library initializers ran, together with
+// the program it ran. Resuming it only runs the initializers of the input
+// files, so the libraries are not initialized over and over again.
+public final class Snapshot implements Serializable {
+
+    private static final long serialVersionUID = 9120384756102L;
+
+    private static final class BufferInput extends InputStream {
+
+        private final ByteBuffer buf;
+
+        public BufferInput(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (!buf.hasRemaining()) {
+                return len == 0 ? 0 : -1;
+            }
+            final int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
+
+    // The program as it was compiled (the machine works on copies)
+    public final Map<String, FuncBlock> code;
+    // Global variables and whatever else the rest of @init refers to
+    public final Map<Value, Value> globals;
+    // The part of @init that did not run yet
+    public final List<Statement> entry;
+
+    public Snapshot(Map<String, FuncBlock> code, Map<Value, Value> globals, List<Statement> entry) {
+        this.code = new LinkedHashMap<>(code);
+        this.globals = new HashMap<>(globals);
+        this.entry = new ArrayList<>(entry);
+    }
+
+    public void write(final Path path) throws IOException {
+        try (final ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            oos.writeObject(this);
+        }
+    }
+
+    public static Snapshot read(final Path path) throws IOException {
+        try (final FileChannel ch = FileChannel.open(path)) {
+            final ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            try (final ObjectInputStream ois = new ObjectInputStream(new BufferInput(buf))) {
+                return (Snapshot) ois.readObject();
+            } catch (ClassNotFoundException | ClassCastException ex) {
+                throw new IOException("Not a snapshot " + path, ex);
+            }
+        }
+    }
+}
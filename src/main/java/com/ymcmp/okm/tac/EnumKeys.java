@@ -1,8 +1,12 @@
 package com.ymcmp.okm.tac;
 
+import java.io.Serializable;
+
 import java.util.Arrays;
 
-public final class EnumKeys implements Value {
+public final class EnumKeys implements Serializable, Value {
+
+    private static final long serialVersionUID = 7712093846521L;
 
     public final String[] keys;
 
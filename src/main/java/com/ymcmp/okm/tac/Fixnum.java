@@ -2,69 +2,95 @@ package com.ymcmp.okm.tac;
 
 import java.io.Serializable;
 
-import java.math.BigDecimal;
-
-import java.util.Objects;
-
 public final class Fixnum implements Serializable, Value, Comparable<Fixnum> {
 
     private static final long serialVersionUID = 62374902123L;
 
-    public static final Fixnum TRUE  = new Fixnum(1, Byte.SIZE);
-    public static final Fixnum FALSE = new Fixnum(0, Byte.SIZE);
+    public static final Fixnum TRUE  = valueOf(1, Byte.SIZE);
+    public static final Fixnum FALSE = valueOf(0, Byte.SIZE);
 
     public final int size;
     public final String value;
 
     public final boolean isInt;
 
+    // Numeric form of value, only one of them is meaningful (see isInt)
+    private final long longValue;
+    private final double doubleValue;
+
+    // Lazily computed, 0 means not computed yet
+    private transient int hash;
+
     public Fixnum(String value) {
         this(value, Integer.SIZE);
     }
 
     public Fixnum(String value, int size) {
-        String conv;
+        long l = 0;
+        double d = 0;
         boolean isInt;
         try {
-            conv = truncateValue(Long.parseLong(value), size);
+            l = narrow(Long.parseLong(value), size);
+            value = Long.toString(l);
             isInt = true;
         } catch (NumberFormatException ex) {
             // If it is not a int, it is a float
-            Double.parseDouble(value);
-            conv = value;
+            d = Double.parseDouble(value);
             isInt = false;
         }
-        this.value = conv;
+        this.value = value;
         this.size = size;
         this.isInt = isInt;
+        this.longValue = l;
+        this.doubleValue = d;
     }
 
     public Fixnum(long value, int size) {
-        this.value = truncateValue(value, size);
+        this.longValue = narrow(value, size);
+        this.doubleValue = 0;
+        this.value = Long.toString(longValue);
         this.size = size;
         this.isInt = true;
     }
 
     public Fixnum(long value) {
-        this.value = Long.toString(value);
-        this.size = Long.SIZE;
-        this.isInt = true;
+        this(value, Long.SIZE);
     }
 
     public Fixnum(double value) {
-        this.value = Double.toString(value);
-        this.size = Double.SIZE;
-        this.isInt = false;
+        this(value, Double.SIZE);
     }
 
     public Fixnum(double value, int size) {
+        this.longValue = 0;
+        this.doubleValue = value;
         this.value = Double.toString(value);
         this.size = size;
         this.isInt = false;
     }
 
+    public static Fixnum valueOf(long value, int size) {
+        final Fixnum[] cache = SmallCache.forSize(size);
+        if (cache != null && value >= SmallCache.LOW && value <= SmallCache.HIGH) {
+            return cache[(int) value - SmallCache.LOW];
+        }
+        return new Fixnum(value, size);
+    }
+
+    public static Fixnum valueOf(long value) {
+        return valueOf(value, Long.SIZE);
+    }
+
     public Fixnum changeSize(int size) {
-        return new Fixnum(this.value, size);
+        return isInt ? valueOf(longValue, size) : new Fixnum(this.value, size);
+    }
+
+    public long longValue() {
+        return isInt ? longValue : (long) doubleValue;
+    }
+
+    public double doubleValue() {
+        return isInt ? longValue : doubleValue;
     }
 
     @Override
@@ -87,22 +113,39 @@ public final class Fixnum implements Serializable, Value, Comparable<Fixnum> {
         return value + "_" + size;
     }
 
+    private boolean isNaN() {
+        return !isInt && doubleValue != doubleValue;
+    }
+
     @Override
     public int compareTo(final Fixnum other) {
-        if (value.equals("NaN")) {
-            return other.value.equals("NaN") ? 0 : 1;
+        if (isNaN()) {
+            return other.isNaN() ? 0 : 1;
         }
-        if (other.value.equals("NaN")) {
+        if (other.isNaN()) {
             return -1;
         }
-        final BigDecimal a = new BigDecimal(value);
-        final BigDecimal b = new BigDecimal(other.value);
-        return a.compareTo(b);
+        if (isInt && other.isInt) {
+            return Long.compare(longValue, other.longValue);
+        }
+        // IEEE-754 comparison, so -0.0 and 0.0 are the same
+        final double a = doubleValue();
+        final double b = other.doubleValue();
+        return a < b ? -1 : (a > b ? 1 : 0);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(size, value, isInt);
+        int h = hash;
+        if (h == 0) {
+            // Same as Objects.hash(size, value, isInt) without the boxing.
+            // The size is part of it, so constants of different sizes
+            // land in different buckets (the AMD64 data section is keyed
+            // on these)
+            h = 31 * (31 * (31 + size) + value.hashCode()) + Boolean.hashCode(isInt);
+            hash = h;
+        }
+        return h;
     }
 
     @Override
@@ -111,7 +154,7 @@ public final class Fixnum implements Serializable, Value, Comparable<Fixnum> {
         if (obj == null) return false;
         if (obj.getClass() == this.getClass()) {
             final Fixnum f = (Fixnum) obj;
-            if (value.equals("NaN") || f.value.equals("NaN")) {
+            if (isNaN() || f.isNaN()) {
                 // Handle special case which is NaN == NaN returns false
                 return false;
             }
@@ -121,13 +164,48 @@ public final class Fixnum implements Serializable, Value, Comparable<Fixnum> {
         return false;
     }
 
-    private static String truncateValue(final long value, final int size) {
-        final int bytes = size / Byte.SIZE * 2;
-        final String toHex = Long.toString(value, 16);
-        // Only keep last $bytes characters if string is longer than that
-        final int len = toHex.length();
-        final String truncated = len > bytes ? toHex.substring(len - bytes, len) : toHex;
-        // Convert back to base 10
-        return Long.toString(Long.parseLong(truncated, 16));
+    private static long narrow(final long value, final int size) {
+        // Two's complement truncation, the result is sign extended
+        if (size <= 0 || size >= Long.SIZE) {
+            return value;
+        }
+        final int shift = Long.SIZE - size;
+        return (value << shift) >> shift;
+    }
+
+    private Object readResolve() {
+        // Streams written before longValue and doubleValue existed leave
+        // them at 0, rebuild both from value
+        return isInt ? valueOf(Long.parseLong(value), size) : new Fixnum(value, size);
+    }
+
+    private static final class SmallCache {
+
+        // Loop counters, offsets and booleans mostly fall in this range
+        public static final int LOW = -128;
+        public static final int HIGH = 1023;
+
+        private static final Fixnum[] BYTES = fill(Byte.SIZE);
+        private static final Fixnum[] SHORTS = fill(Short.SIZE);
+        private static final Fixnum[] INTS = fill(Integer.SIZE);
+        private static final Fixnum[] LONGS = fill(Long.SIZE);
+
+        private static Fixnum[] fill(final int size) {
+            final Fixnum[] cache = new Fixnum[HIGH - LOW + 1];
+            for (int i = 0; i < cache.length; ++i) {
+                cache[i] = new Fixnum(i + LOW, size);
+            }
+            return cache;
+        }
+
+        public static Fixnum[] forSize(final int size) {
+            switch (size) {
+                case Byte.SIZE:     return BYTES;
+                case Short.SIZE:    return SHORTS;
+                case Integer.SIZE:  return INTS;
+                case Long.SIZE:     return LONGS;
+                default:            return null;
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -123,7 +123,15 @@ public enum Operation {
     CALL_INT,
     CALL_FLOAT,
     CALL_UNIT,
-    TAILCALL;
+    TAILCALL,
+
+    // Superinstructions: these are never emitted by the compiler. The
+    // interpreter fuses them at link time and keeps the statements they
+    // cover right after them (so jumps into the middle still work).
+    FUSED_LOAD_ADD,
+    FUSED_CMP_JUMP,
+    FUSED_PUSH_CALL,
+    FUSED_POINTER_GET_ATTR;
 
     public boolean isCmp() {
         switch (this) {
@@ -201,6 +209,23 @@ public enum Operation {
         }
     }
 
+    // The result depends on the contents of memory (or hands out a new
+    // piece of it), the same operands do not always give the same result
+    public boolean readsMemory() {
+        switch (this) {
+            case REFER_VAR:
+            case REFER_ATTR:
+            case POINTER_GET:
+            case GET_ATTR:
+            case DEREF_GET_ATTR:
+            case ALLOC_LOCAL:
+            case ALLOC_GLOBAL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
     public Operation getMatchingReturn() {
         switch (this) {
             case CALL_INT:
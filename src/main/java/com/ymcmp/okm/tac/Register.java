@@ -2,36 +2,66 @@ package com.ymcmp.okm.tac;
 
 import java.io.Serializable;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 public final class Register implements Serializable, Value {
 
     private static final long serialVersionUID = 2348254334682L;
 
     private static final String PREFIX_TEMPORARY = "%T";
 
-    private static String tmpPrefix = "";
-    private static long counter = 0;
+    // Registers with the same name are the same instance, which keeps
+    // the maps keyed by registers cheap (equals is mostly identity)
+    private static final ConcurrentHashMap<String, Register> POOL = new ConcurrentHashMap<>();
 
-    private final String name;
+    // Temporaries are numbered per thread, so stages of a pipelined
+    // compile can generate them at the same time
+    private static final class TempState {
+
+        public String prefix = "";
+        public long counter = 0;
+    }
+
+    private static final ThreadLocal<TempState> TEMP_STATE = ThreadLocal.withInitial(TempState::new);
 
+    private final String name;
+    private final int hash;
 
     private Register(final String name) {
         this.name = name;
+        this.hash = name.hashCode();
     }
 
     public static void setAdditionalTemporaryPrefix(final String prefix) {
-        tmpPrefix = prefix;
+        TEMP_STATE.get().prefix = prefix;
+    }
+
+    public static String getAdditionalTemporaryPrefix() {
+        return TEMP_STATE.get().prefix;
     }
 
     public static Register makeNamed(String name) {
-        return new Register(name);
+        final Register reg = POOL.get(name);
+        return reg != null ? reg : POOL.computeIfAbsent(name, Register::new);
     }
 
     public static Register makeTemporary() {
-        return new Register(PREFIX_TEMPORARY + tmpPrefix + counter++);
+        final TempState state = TEMP_STATE.get();
+        return makeNamed(PREFIX_TEMPORARY + state.prefix + state.counter++);
     }
 
     public static void resetCounter() {
-        counter = 0;
+        TEMP_STATE.get().counter = 0;
+    }
+
+    public static void clearPool() {
+        // Registers made before this are still equal to the new ones,
+        // they just stop being the same instance
+        POOL.clear();
+    }
+
+    private Object readResolve() {
+        return makeNamed(name);
     }
 
     @Override
@@ -56,13 +86,15 @@ public final class Register implements Serializable, Value {
 
     @Override
     public int hashCode() {
-        return name.hashCode();
+        return hash;
     }
 
     @Override
     public boolean equals(final Object obj) {
         if (obj == this) return true;
-        if (obj == null) return false;
-        return obj.getClass() == this.getClass() && name.equals(((Register) obj).name);
+        if (obj == null || obj.getClass() != this.getClass()) return false;
+        // Only possible if the pool was cleared in between
+        final Register reg = (Register) obj;
+        return hash == reg.hash && name.equals(reg.name);
     }
 }
\ No newline at end of file
@@ -1,35 +1,88 @@
 package com.ymcmp.okm.tac;
 
+import java.io.Serializable;
+
+import java.util.Map;
 import java.util.HashMap;
 
-import java.util.stream.Collectors;
+public final class StructFields implements Serializable, Value {
+
+    private static final long serialVersionUID = 5830918273645L;
+
+    private static final class Storage implements Serializable {
+
+        private static final long serialVersionUID = 5830918273646L;
 
-import com.ymcmp.okm.Tuple;
+        public final HashMap<String, Value> fields;
 
-public final class StructFields implements Value {
+        // Number of StructFields sharing this storage. Never decremented
+        // when a StructFields is simply dropped, so it may overestimate
+        // (causing an unnecessary copy, but never a missing one).
+        public int refs = 1;
 
-    private final HashMap<String, Value> fields;
+        // Set once a nested struct or pointer was handed out by get. The
+        // caller can write through it without going through put, so the
+        // storage can no longer be shared
+        public boolean escaped = false;
+
+        public Storage(HashMap<String, Value> fields) {
+            this.fields = fields;
+        }
+    }
+
+    private Storage storage;
 
     public StructFields() {
-        this.fields = new HashMap<>();
+        this.storage = new Storage(new HashMap<>());
+    }
+
+    private StructFields(final Storage storage) {
+        this.storage = storage;
     }
 
     @Override
     public StructFields duplicate() {
-        // Need to recursively duplicate all fields!
-        final StructFields newStruct = new StructFields();
-        newStruct.fields.putAll(fields.entrySet().stream()
-                .map(ent -> new Tuple<>(ent.getKey(), ent.getValue().duplicate()))
-                .collect(Collectors.toMap(Tuple::getA, Tuple::getB)));
-        return newStruct;
+        if (storage.escaped) {
+            return new StructFields(new Storage(copyFields()));
+        }
+
+        // Copy-on-write: share the fields until one of them is written to
+        ++storage.refs;
+        return new StructFields(storage);
     }
 
     public Value get(String attr) {
-        return fields.get(attr);
+        final Value value = storage.fields.get(attr);
+        if (value instanceof StructFields || value instanceof Mutable) {
+            // Caller could write through the returned value, which must
+            // not be seen by the other structs sharing the storage, now
+            // or after a later duplicate
+            unshare();
+            storage.escaped = true;
+            return storage.fields.get(attr);
+        }
+        return value;
     }
 
     public void put(String attr, Value value) {
-        fields.put(attr, value);
+        unshare();
+        storage.fields.put(attr, value);
+    }
+
+    private void unshare() {
+        if (storage.refs > 1) {
+            --storage.refs;
+            storage = new Storage(copyFields());
+        }
+    }
+
+    private HashMap<String, Value> copyFields() {
+        // Need to recursively duplicate all fields!
+        final HashMap<String, Value> fields = new HashMap<>();
+        for (final Map.Entry<String, Value> entry : storage.fields.entrySet()) {
+            fields.put(entry.getKey(), entry.getValue().duplicate());
+        }
+        return fields;
     }
 
     @Override
@@ -44,6 +97,6 @@ public final class StructFields implements Value {
 
     @Override
     public String toString() {
-        return fields.toString();
+        return storage.fields.toString();
     }
-}
\ No newline at end of file
+}
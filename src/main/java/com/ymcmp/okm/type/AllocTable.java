@@ -1,27 +1,63 @@
 package com.ymcmp.okm.type;
 
+import java.io.Serializable;
+
 import java.util.Map;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 
 import com.ymcmp.okm.except.DuplicateSymbolException;
 
 public abstract class AllocTable implements Type {
 
+    // Shared between a table and its allocated copy
+    protected static final class Layout implements Serializable {
+
+        private static final long serialVersionUID = 586234107L;
+
+        public final LinkedHashMap<String, Type> fields = new LinkedHashMap<>();
+
+        // Computed on first use, reset whenever a field is added
+        private int size = -1;
+        private HashMap<String, Integer> offsets;
+        private Type[] types;
+
+        private void compute() {
+            final HashMap<String, Integer> map = new HashMap<>();
+            final Type[] list = new Type[fields.size()];
+            int offset = 0;
+            int i = 0;
+            for (final Map.Entry<String, Type> pair : fields.entrySet()) {
+                map.put(pair.getKey(), offset);
+                list[i++] = pair.getValue();
+                offset += pair.getValue().getSize();
+            }
+            offsets = map;
+            types = list;
+            size = offset;
+        }
+    }
+
+    protected final Layout layout;
     protected final LinkedHashMap<String, Type> fields;
 
     public AllocTable() {
-        fields = new LinkedHashMap<>();
+        this(new Layout());
     }
 
-    protected AllocTable(LinkedHashMap<String, Type> fields) {
-        this.fields = fields;
+    protected AllocTable(Layout layout) {
+        this.layout = layout;
+        this.fields = layout.fields;
     }
 
     @Override
     public abstract AllocTable allocate();
 
     public int getSize() {
-        return fields.values().stream().mapToInt(Type::getSize).sum();
+        if (layout.size < 0) {
+            layout.compute();
+        }
+        return layout.size;
     }
 
     public void putField(String name, Type type) {
@@ -29,20 +65,26 @@ public abstract class AllocTable implements Type {
             throw new DuplicateSymbolException(name);
         }
         fields.put(name, type);
+        layout.size = -1;
     }
 
     public int getOffsetOfField(String attr) {
-        int offset = 0;
-        for (final Map.Entry<String, Type> pair : fields.entrySet()) {
-            if (pair.getKey().equals(attr)) {
-                break;
-            }
-            offset += pair.getValue().getSize();
+        if (layout.size < 0) {
+            layout.compute();
+        }
+        // Unknown fields are placed after the last field
+        return layout.offsets.getOrDefault(attr, layout.size);
+    }
+
+    // The field types in declaration order, must not be modified
+    protected Type[] getFieldTypes() {
+        if (layout.size < 0) {
+            layout.compute();
         }
-        return offset;
+        return layout.types;
     }
 
     public Type accessAttribute(String attr) {
         return fields.get(attr);
     }
-}
\ No newline at end of file
+}
@@ -19,12 +19,15 @@ public final class ClassType extends AllocTable {
 
     private final LinkedHashMap<String, FuncType> vtable;
 
+    // Every allocation of this class is the same type
+    private ClassType allocatedCopy;
+
     public ClassType(String name) {
-        this(name, new LinkedHashMap<>(), new LinkedHashMap<>(), false);
+        this(name, new Layout(), new LinkedHashMap<>(), false);
     }
 
-    private ClassType(String name, LinkedHashMap<String, Type> fields, LinkedHashMap<String, FuncType> vtable, boolean allocate) {
-        super(fields);
+    private ClassType(String name, Layout layout, LinkedHashMap<String, FuncType> vtable, boolean allocate) {
+        super(layout);
         this.name = name;
         this.vtable = vtable;
         this.allocated = allocate;
@@ -56,7 +59,10 @@ public final class ClassType extends AllocTable {
         if (allocated) {
             throw new UndefinedOperationException("Cannot allocate non-class type");
         }
-        return new ClassType(name, fields, vtable, true);
+        if (allocatedCopy == null) {
+            allocatedCopy = new ClassType(name, layout, vtable, true);
+        }
+        return allocatedCopy;
     }
 
     @Override
@@ -67,6 +73,9 @@ public final class ClassType extends AllocTable {
 
     @Override
     public boolean isSameType(Type t) {
+        if (t == this) {
+            return true;
+        }
         if (t instanceof ClassType) {
             return name.equals(((ClassType) t).name);
         }
@@ -16,6 +16,11 @@ public final class EnumType implements Type {
         this.name = name;
     }
 
+    // Forget enums defined by the previous compilation
+    public static void clearKeys() {
+        KEYS.clear();
+    }
+
     public static EnumType makeEnum(String name, String... keys) {
         if (KEYS.containsKey(name)) {
             throw new DuplicateSymbolException("enum " + name);
@@ -1,19 +1,41 @@
 package com.ymcmp.okm.type;
 
 import java.util.Arrays;
+import java.util.HashMap;
 
 public final class FuncType implements Type {
 
     private static final long serialVersionUID = 739173554511L;
 
-    public Type ret;
-    public Type[] params;
+    // (return type, parameter types...) -> the function type
+    private static final HashMap<TypeList, FuncType> CACHE = new HashMap<>();
 
-    public FuncType(Type ret, Type... params) {
+    public final Type ret;
+    public final Type[] params;
+
+    private FuncType(Type ret, Type... params) {
         this.ret = ret;
         this.params = params;
     }
 
+    public static FuncType of(final Type ret, final Type... params) {
+        final Type[] key = new Type[params.length + 1];
+        key[0] = ret;
+        System.arraycopy(params, 0, key, 1, params.length);
+
+        final TypeList sig = new TypeList(key);
+        FuncType type = CACHE.get(sig);
+        if (type == null) {
+            CACHE.put(sig, type = new FuncType(ret, params));
+        }
+        return type;
+    }
+
+    // Forget function types created by the previous compilation
+    public static void clearCache() {
+        CACHE.clear();
+    }
+
     @Override
     public int getSize() {
         // This is very wrong and non-portable.
@@ -35,6 +57,9 @@ public final class FuncType implements Type {
 
     @Override
     public boolean isSameType(Type t) {
+        if (t == this) {
+            return true;
+        }
         // Only true if type signature is exactly the same
         if (t instanceof FuncType) {
             final FuncType other = (FuncType) t;
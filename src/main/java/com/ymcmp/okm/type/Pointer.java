@@ -1,15 +1,35 @@
 package com.ymcmp.okm.type;
 
+import java.util.IdentityHashMap;
+
 public final class Pointer<T extends Type> implements Type {
 
     private static final long serialVersionUID = 10293754L;
 
+    // inner type -> the pointer to it
+    private static final IdentityHashMap<Type, Pointer<?>> CACHE = new IdentityHashMap<>();
+
     public final T inner;
 
-    public Pointer(T inner) {
+    private Pointer(T inner) {
         this.inner = inner;
     }
 
+    // Safe since the key is the inner type of the pointer it maps to
+    @SuppressWarnings("unchecked")
+    public static <T extends Type> Pointer<T> of(final T inner) {
+        Pointer<T> ret = (Pointer<T>) CACHE.get(inner);
+        if (ret == null) {
+            CACHE.put(inner, ret = new Pointer<>(inner));
+        }
+        return ret;
+    }
+
+    // Forget pointers created by the previous compilation
+    public static void clearCache() {
+        CACHE.clear();
+    }
+
     @Override
     public int getSize() {
         // Must be same as funcType's
@@ -18,6 +38,9 @@ public final class Pointer<T extends Type> implements Type {
 
     @Override
     public boolean isSameType(Type t) {
+        if (t == this) {
+            return true;
+        }
         if (t instanceof Pointer) {
             return inner.isSameType(((Pointer) t).inner);
         }
@@ -33,7 +56,7 @@ public final class Pointer<T extends Type> implements Type {
 
     @Override
     public Pointer allocate() {
-        return new Pointer(inner.allocate());
+        return Pointer.of(inner.allocate());
     }
 
     @Override
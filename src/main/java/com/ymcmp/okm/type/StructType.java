@@ -15,12 +15,15 @@ public final class StructType extends AllocTable {
 
     private final boolean allocated;
 
+    // Every allocation of this struct is the same type
+    private StructType allocatedCopy;
+
     public StructType() {
-        this(new LinkedHashMap<>(), false);
+        this(new Layout(), false);
     }
 
-    private StructType(LinkedHashMap<String, Type> fields, boolean allocate) {
-        super(fields);
+    private StructType(Layout layout, boolean allocate) {
+        super(layout);
         this.allocated = allocate;
     }
 
@@ -29,20 +32,22 @@ public final class StructType extends AllocTable {
         if (allocated) {
             throw new UndefinedOperationException("Cannot allocate non-struct type");
         }
-        return new StructType(fields, true);
+        if (allocatedCopy == null) {
+            allocatedCopy = new StructType(layout, true);
+        }
+        return allocatedCopy;
     }
 
     @Override
     public boolean isSameType(Type t) {
+        if (t == this) {
+            return true;
+        }
         if (t instanceof StructType) {
             // These two types are equivalent:
             //   struct Color4f(r, b, g, a :float)
             //   struct Vector4f(w, x, y, z :float)
-
-            final StructType other = (StructType) t;
-            final Type[] expect = this.fields.values().toArray(new Type[0]);
-            final Type[] actual = other.fields.values().toArray(new Type[0]);
-            return Arrays.equals(expect, actual);
+            return Arrays.equals(getFieldTypes(), ((StructType) t).getFieldTypes());
         }
         return false;
     }
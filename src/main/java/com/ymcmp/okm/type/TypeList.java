@@ -0,0 +1,41 @@
+package com.ymcmp.okm.type;
+
+// A list of types compared by reference, used as a key by the caches that
+// rely on types being unique
+public final class TypeList {
+
+    public final Type[] types;
+    private final int hash;
+
+    public TypeList(Type... types) {
+        this.types = types;
+
+        int h = 1;
+        for (final Type t : types) {
+            h = 31 * h + System.identityHashCode(t);
+        }
+        this.hash = h;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof TypeList) {
+            final Type[] other = ((TypeList) obj).types;
+            if (other.length != types.length) {
+                return false;
+            }
+            for (int i = 0; i < types.length; ++i) {
+                if (other[i] != types[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+}
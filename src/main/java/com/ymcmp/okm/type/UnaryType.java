@@ -1,7 +1,6 @@
 package com.ymcmp.okm.type;
 
 import java.util.HashMap;
-import java.util.Objects;
 
 public final class UnaryType implements Type {
 
@@ -10,6 +9,11 @@ public final class UnaryType implements Type {
     private static final HashMap<String, Integer> NUM_TYPE_DISTANCE = new HashMap<>();
     private static final HashMap<String, UnaryType> CACHE = new HashMap<>();
 
+    // Numeric types in the order of their numeric index
+    private static final String[] NUMERIC_NAMES = { "byte", "short", "int", "long", "float", "double" };
+
+    public static final int NUMERIC_COUNT = NUMERIC_NAMES.length;
+
     static {
         NUM_TYPE_DISTANCE.put("byte", Byte.SIZE);
         NUM_TYPE_DISTANCE.put("short", Short.SIZE);
@@ -23,8 +27,42 @@ public final class UnaryType implements Type {
 
     public final String name;
 
+    // Position in NUMERIC_NAMES, -1 if not numeric
+    public final int numericIndex;
+
+    // Everything below is derived from the name once
+    private final int size;
+    private final boolean floatPoint;
+    private final Integer distance;
+
     private UnaryType(final String name) {
         this.name = name;
+
+        int index = -1;
+        for (int i = 0; i < NUMERIC_NAMES.length; ++i) {
+            if (NUMERIC_NAMES[i].equals(name)) {
+                index = i;
+                break;
+            }
+        }
+        this.numericIndex = index;
+        this.size = sizeOf(name);
+        this.floatPoint = "float".equals(name) || "double".equals(name);
+        this.distance = NUM_TYPE_DISTANCE.get(name);
+    }
+
+    private static int sizeOf(final String name) {
+        switch (name) {
+            case "unit":    // Unit has a size, because you could pass in unit as a argument!
+            case "bool":
+            case "byte":    return 8;
+            case "short":   return 16;
+            case "int":     return 32;
+            case "long":    return 64;
+            case "float":   return 32;
+            case "double":  return 64;
+            default:        return -1;
+        }
     }
 
     public static UnaryType getType(String name) {
@@ -42,18 +80,15 @@ public final class UnaryType implements Type {
 
     @Override
     public int getSize() {
-        switch (name) {
-            case "unit":    // Unit has a size, because you could pass in unit as a argument!
-            case "bool":
-            case "byte":    return 8;
-            case "short":   return 16;
-            case "int":     return 32;
-            case "long":    return 64;
-            case "float":   return 32;
-            case "double":  return 64;
-            default:
-                throw new AssertionError("Unknown size of type " + name);
+        if (size < 0) {
+            throw new AssertionError("Unknown size of type " + name);
         }
+        return size;
+    }
+
+    private Object readResolve() {
+        // Keep the types unique so they can be compared by reference
+        return getType(name);
     }
 
     @Override
@@ -63,36 +98,28 @@ public final class UnaryType implements Type {
 
     @Override
     public boolean isSameType(final Type t) {
-        if (t instanceof UnaryType) {
-            final UnaryType other = (UnaryType) t;
-            return Objects.equals(this.name, other.name);
-        }
-        return false;
+        // Instances are unique per name
+        return t == this;
     }
 
     @Override
     public boolean isFloatPoint() {
-        switch (name) {
-            case "float":
-            case "double":
-                return true;
-            default:
-                return false;
-        }
+        return floatPoint;
     }
 
     @Override
     public boolean canConvertTo(Type t) {
+        if (t == this) {
+            return true;
+        }
         if (t instanceof UnaryType) {
-            final UnaryType other = (UnaryType) t;
-
-            final Integer a = NUM_TYPE_DISTANCE.get(this.name);
-            final Integer b = NUM_TYPE_DISTANCE.get(other.name);
+            final Integer a = this.distance;
+            final Integer b = ((UnaryType) t).distance;
             if (a != null && b != null) {
                 // long and float actually causes float to be returned!
                 return a <= b;
             }
-            return Objects.equals(this.name, other.name);
+            return false;
         }
         return Type.super.canConvertTo(t);
     }
@@ -107,11 +134,9 @@ public final class UnaryType implements Type {
         switch (op) {
             case ADD:
             case SUB:
-                return NUM_TYPE_DISTANCE.get(name) != null ? this : null;
+                return distance != null ? this : null;
             case TILDA:
-                return NUM_TYPE_DISTANCE.get(name) != null
-                        && !"float".equals(name)
-                        && !"double".equals(name) ? this : null;
+                return distance != null && !floatPoint ? this : null;
         }
         return null;
     }
@@ -120,8 +145,8 @@ public final class UnaryType implements Type {
         if (rhs instanceof UnaryType) {
             final UnaryType other = (UnaryType) rhs;
 
-            final Integer a = NUM_TYPE_DISTANCE.get(this.name);
-            final Integer b = NUM_TYPE_DISTANCE.get(other.name);
+            final Integer a = this.distance;
+            final Integer b = other.distance;
             if (a != null && b != null) {
                 return a < b ? rhs : this;
             }